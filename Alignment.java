@@ -0,0 +1,325 @@
+/*
+ * Alignment.java
+ *
+ * Defines a new "Alignment" type: a minimum edit distance alignment of a
+ * hypothesis against its reference transcript, as a sequence of
+ * operations, each pairing at most one hypothesis word with at most one
+ * reference word:
+ *
+ *   MATCH          the words are the same
+ *   SUBSTITUTION   the hypothesis has the wrong word
+ *   INSERTION      the hypothesis has a word the reference does not
+ *   DELETION       the hypothesis leaves out a reference word
+ *
+ * The substitutions, insertions and deletions add up to the edit distance
+ * computeWER uses.
+ *
+ * The alignment is found with Hirschberg's divide and conquer: the
+ * hypothesis is split in half, the reference split point is found from one
+ * forward and one backward row of the edit distance table, and each half is
+ * aligned on its own.  Once a piece is small enough, it is aligned with a
+ * full table of one-byte traceback moves.  Memory is therefore linear in
+ * the utterance length (plus a bounded traceback block), however long the
+ * utterance, for about twice the time of computing the distance alone.
+ *
+ * The type is immutable.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.Arrays;
+
+public final class Alignment {
+    // Operation - what one step of the alignment does
+    public enum Operation {
+        MATCH,
+        SUBSTITUTION,
+        INSERTION,
+        DELETION
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final int MAX_TRACEBACK_CELLS = 1 << 20;   // Bytes in one traceback table
+
+    private final byte[] operations;        // operations[k] is the ordinal of the k'th Operation
+    private final int[] hypothesisWords;    // Vocabulary ids of the k'th step's words,
+    private final int[] referenceWords;     //   -1 where the step has none
+    private final int[] counts;             // Steps of each Operation, by ordinal
+
+    // Constructor
+
+    // Alignment
+    // Preconditions:
+    //     - the arrays describe the steps of an alignment, in order
+    // Post-conditions
+    //     - The alignment is created, and its steps of each kind counted
+    private Alignment(byte[] operations, int[] hypothesisWords, int[] referenceWords) {
+        this.operations = operations;
+        this.hypothesisWords = hypothesisWords;
+        this.referenceWords = referenceWords;
+        this.counts = new int[OPERATIONS.length];
+        for( int k=0; k<operations.length; k++ ) {
+            this.counts[operations[k]]++;
+        }
+    }
+
+    // compute
+    // Preconditions:
+    //     - hypothesis[0..hypothesisLength-1] and reference[0..referenceLength-1]
+    //       are Vocabulary ids (all >= 0)
+    // Post-conditions
+    //     - Returns a minimum edit distance alignment of the two; where
+    //       several are equally good, substitutions are preferred to an
+    //       insertion and deletion
+    static Alignment compute(int[] hypothesis, int hypothesisLength, int[] reference, int referenceLength) {
+        Aligner aligner = new Aligner(hypothesis, reference, hypothesisLength + referenceLength);
+        aligner.align(0, hypothesisLength, 0, referenceLength);
+        return new Alignment(Arrays.copyOf(aligner.operations, aligner.length),
+                             Arrays.copyOf(aligner.hypothesisWords, aligner.length),
+                             Arrays.copyOf(aligner.referenceWords, aligner.length));
+    }
+
+    // Aligner - the working state of compute: the two sequences, the steps
+    //   found so far, and the rows reused by every split
+    private static final class Aligner {
+        private final int[] hypothesis, reference;
+        private final byte[] operations;
+        private final int[] hypothesisWords, referenceWords;
+        private int length;                  // Steps found so far
+        private final int[] forward, backward;
+
+        Aligner(int[] hypothesis, int[] reference, int maxSteps) {
+            this.hypothesis = hypothesis;
+            this.reference = reference;
+            this.operations = new byte[maxSteps];
+            this.hypothesisWords = new int[maxSteps];
+            this.referenceWords = new int[maxSteps];
+            this.forward = new int[reference.length + 1];
+            this.backward = new int[reference.length + 1];
+        }
+
+        // align - appends the steps aligning hypothesis[i0..i1-1] with
+        //   reference[j0..j1-1]
+        void align(int i0, int i1, int j0, int j1) {
+            if( (long)(i1 - i0 + 1) * (j1 - j0 + 1) <= MAX_TRACEBACK_CELLS || i1 - i0 < 2 ) {
+                traceback(i0, i1, j0, j1);
+                return;
+            }
+            // forward[j] = distance(hypothesis[i0..middle-1], reference[j0..j-1]) and
+            // backward[j] = distance(hypothesis[middle..i1-1], reference[j..j1-1]);
+            // an optimal path crosses row middle at the j minimizing their sum
+            int middle = (i0 + i1) >>> 1;
+            forwardRow(i0, middle, j0, j1);
+            backwardRow(middle, i1, j0, j1);
+            int split = j0;
+            for( int j=j0+1; j<=j1; j++ ) {
+                if( this.forward[j] + this.backward[j] < this.forward[split] + this.backward[split] ) {
+                    split = j;
+                }
+            }
+            align(i0, middle, j0, split);
+            align(middle, i1, split, j1);
+        }
+
+        // forwardRow - fills forward[j0..j1] with the last row of the table
+        //   for hypothesis[i0..i1-1] against prefixes of reference[j0..j1-1]
+        private void forwardRow(int i0, int i1, int j0, int j1) {
+            int[] row = this.forward;
+            for( int j=j0; j<=j1; j++ ) {
+                row[j] = j - j0;
+            }
+            for( int i=i0; i<i1; i++ ) {
+                int diagonal = row[j0];
+                row[j0] = i - i0 + 1;
+                int word = this.hypothesis[i];
+                for( int j=j0+1; j<=j1; j++ ) {
+                    int cost = diagonal + (word == this.reference[j - 1] ? 0 : 1);
+                    diagonal = row[j];
+                    row[j] = Math.min(cost, Math.min(row[j], row[j - 1]) + 1);
+                }
+            }
+        }
+
+        // backwardRow - fills backward[j0..j1] with the first row of the
+        //   table for hypothesis[i0..i1-1] against suffixes of reference[j0..j1-1]
+        private void backwardRow(int i0, int i1, int j0, int j1) {
+            int[] row = this.backward;
+            for( int j=j0; j<=j1; j++ ) {
+                row[j] = j1 - j;
+            }
+            for( int i=i1-1; i>=i0; i-- ) {
+                int diagonal = row[j1];
+                row[j1] = i1 - i;
+                int word = this.hypothesis[i];
+                for( int j=j1-1; j>=j0; j-- ) {
+                    int cost = diagonal + (word == this.reference[j] ? 0 : 1);
+                    diagonal = row[j];
+                    row[j] = Math.min(cost, Math.min(row[j], row[j + 1]) + 1);
+                }
+            }
+        }
+
+        // traceback - appends the steps aligning hypothesis[i0..i1-1] with
+        //   reference[j0..j1-1], from a full table of moves
+        private void traceback(int i0, int i1, int j0, int j1) {
+            int rows = i1 - i0, columns = j1 - j0;
+            int width = columns + 1;
+            byte[] moves = new byte[(rows + 1) * width];   // The Operation that reached each cell
+            int[] row = new int[width];
+            for( int j=1; j<=columns; j++ ) {
+                row[j] = j;
+                moves[j] = (byte)Operation.DELETION.ordinal();
+            }
+            for( int i=1; i<=rows; i++ ) {
+                int diagonal = row[0];
+                row[0] = i;
+                moves[i * width] = (byte)Operation.INSERTION.ordinal();
+                int word = this.hypothesis[i0 + i - 1];
+                for( int j=1; j<=columns; j++ ) {
+                    boolean match = word == this.reference[j0 + j - 1];
+                    int best = diagonal + (match ? 0 : 1);
+                    Operation move = match ? Operation.MATCH : Operation.SUBSTITUTION;
+                    if( row[j] + 1 < best ) {
+                        best = row[j] + 1;
+                        move = Operation.INSERTION;
+                    }
+                    if( row[j - 1] + 1 < best ) {
+                        best = row[j - 1] + 1;
+                        move = Operation.DELETION;
+                    }
+                    diagonal = row[j];
+                    row[j] = best;
+                    moves[i * width + j] = (byte)move.ordinal();
+                }
+            }
+
+            // Walk back from the corner, writing the steps in reverse
+            int steps = 0;
+            for( int i=rows, j=columns; i > 0 || j > 0; steps++ ) {
+                byte move = moves[i * width + j];
+                i -= move == Operation.DELETION.ordinal() ? 0 : 1;
+                j -= move == Operation.INSERTION.ordinal() ? 0 : 1;
+            }
+            int k = this.length + steps;
+            for( int i=rows, j=columns; i > 0 || j > 0; ) {
+                byte move = moves[i * width + j];
+                k--;
+                this.operations[k] = move;
+                this.hypothesisWords[k] = move == Operation.DELETION.ordinal() ? -1 : this.hypothesis[i0 + --i];
+                this.referenceWords[k] = move == Operation.INSERTION.ordinal() ? -1 : this.reference[j0 + --j];
+            }
+            this.length += steps;
+        }
+    }
+
+    // Accessors
+
+    // getNumSteps
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of steps in the alignment
+    public int getNumSteps() {
+        return this.operations.length;
+    }
+
+    // getOperation
+    // Preconditions:
+    //     - 0 <= k < getNumSteps()
+    // Post-conditions
+    //     - Returns what the k'th step does
+    public Operation getOperation(int k) {
+        return OPERATIONS[this.operations[k]];
+    }
+
+    // getHypothesisWord
+    // Preconditions:
+    //     - 0 <= k < getNumSteps()
+    // Post-conditions
+    //     - Returns the hypothesis word of the k'th step, or null for a
+    //       DELETION
+    public String getHypothesisWord(int k) {
+        return this.hypothesisWords[k] < 0 ? null : Vocabulary.getGlobal().getWord(this.hypothesisWords[k]);
+    }
+
+    // getReferenceWord
+    // Preconditions:
+    //     - 0 <= k < getNumSteps()
+    // Post-conditions
+    //     - Returns the reference word of the k'th step, or null for an
+    //       INSERTION
+    public String getReferenceWord(int k) {
+        return this.referenceWords[k] < 0 ? null : Vocabulary.getGlobal().getWord(this.referenceWords[k]);
+    }
+
+    // getMatches - the number of MATCH steps
+    public int getMatches() {
+        return this.counts[Operation.MATCH.ordinal()];
+    }
+
+    // getSubstitutions - the number of SUBSTITUTION steps
+    public int getSubstitutions() {
+        return this.counts[Operation.SUBSTITUTION.ordinal()];
+    }
+
+    // getInsertions - the number of INSERTION steps
+    public int getInsertions() {
+        return this.counts[Operation.INSERTION.ordinal()];
+    }
+
+    // getDeletions - the number of DELETION steps
+    public int getDeletions() {
+        return this.counts[Operation.DELETION.ordinal()];
+    }
+
+    // getErrors - substitutions + insertions + deletions, the edit distance
+    public int getErrors() {
+        return getSubstitutions() + getInsertions() + getDeletions();
+    }
+
+    // getReferenceLength - the number of reference words
+    public int getReferenceLength() {
+        return getMatches() + getSubstitutions() + getDeletions();
+    }
+
+    // getWER - errors divided by reference words, as computeWER gives it
+    public double getWER() {
+        return (double)getErrors() / getReferenceLength();
+    }
+
+    // toString
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the alignment as text: a "REF:" line and a "HYP:" line
+    //       with each step's words in a column of its own, "***" marking a
+    //       missing word, then an "S I D" line with the error counts, e.g.
+    //         REF: the cat sat ***
+    //         HYP: the bat ***  down
+    //         S 1 I 1 D 1
+    public String toString() {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        StringBuilder ref = new StringBuilder("REF:");
+        StringBuilder hyp = new StringBuilder("HYP:");
+        for( int k=0; k<this.operations.length; k++ ) {
+            String r = this.referenceWords[k] < 0 ? "***" : vocabulary.getWord(this.referenceWords[k]);
+            String h = this.hypothesisWords[k] < 0 ? "***" : vocabulary.getWord(this.hypothesisWords[k]);
+            int width = Math.max(r.length(), h.length());
+            ref.append(' ').append(r);
+            hyp.append(' ').append(h);
+            if( k == this.operations.length - 1 ) {
+                break;
+            }
+            for( int pad=r.length(); pad<width; pad++ ) {
+                ref.append(' ');
+            }
+            for( int pad=h.length(); pad<width; pad++ ) {
+                hyp.append(' ');
+            }
+        }
+        return ref.append('\n').append(hyp).append('\n')
+                  .append("S ").append(getSubstitutions()).append(" I ").append(getInsertions())
+                  .append(" D ").append(getDeletions()).append('\n').toString();
+    }
+}
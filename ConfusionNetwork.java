@@ -0,0 +1,317 @@
+/*
+ * ConfusionNetwork.java
+ *
+ * Defines a new "ConfusionNetwork" type (a "sausage"): a lattice collapsed
+ * into a sequence of time-ordered slots, each holding the words that
+ * compete at that point of the utterance together with their posterior
+ * probabilities.  Whatever probability a slot's words do not account for
+ * is the probability that nothing is said there (a deletion).
+ *
+ * The network is built by pivot alignment.  The words on the lattice's
+ * best path (ignoring -silence-) become the slots, in order; every other
+ * edge with a non-zero posterior joins the slot whose time span it
+ * overlaps most, found by binary search over the slot boundaries, and
+ * edges carrying the same word in a slot have their posteriors summed.
+ * Building is O(E log E) in the worst case and close to linear in
+ * practice, against the quadratic cost of clustering edges pairwise.
+ *
+ * The type is immutable.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.Arrays;
+
+public class ConfusionNetwork {
+    private final String utteranceID;   // The ID of the lattice it was built from
+    private final double[] slotStarts;  // slotStarts[i] .. slotEnds[i] is the time
+    private final double[] slotEnds;    //   span of slot i, in seconds
+    private final int[][] slotWords;    // slotWords[i][k] is the Vocabulary id of the
+                                        //   k'th word in slot i, most probable first
+    private final double[][] slotPosteriors;  // slotPosteriors[i][k] is its posterior
+
+    // Constructor
+
+    // ConfusionNetwork
+    // Preconditions:
+    //     - lattice is the lattice to collapse
+    //     - lmScale and acousticScale weight the lmScore and amScore, as in
+    //       Lattice.computePosteriors; lmScale also picks the best path, as
+    //       in Lattice.decode
+    // Post-conditions
+    //     - There is one slot for each non -silence- word on the best path,
+    //       spanning that word's edge, in time order
+    //     - Each slot lists each word at most once, with the summed
+    //       posterior of the edges assigned to it, most probable first
+    //     - If a slot's posteriors add up to more than 1 (when one path
+    //       contributes several edges to it), they are scaled to add up to 1
+    // Notes:
+    //     - -silence- edges are not assigned to slots: their probability is
+    //       part of each slot's deletion probability
+    //     - An edge that overlaps no slot joins the slot nearest its midpoint
+    public ConfusionNetwork(Lattice lattice, double lmScale, double acousticScale) {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        this.utteranceID = lattice.getUtteranceID();
+
+        int[] bestPath = lattice.bestPath(lmScale);
+        int numEdges = lattice.getNumEdges();
+        int[] slotOf = new int[numEdges];
+        Arrays.fill(slotOf, -1);
+        double[] starts = new double[bestPath.length];
+        double[] ends = new double[bestPath.length];
+        int numSlots = 0;
+        for( int i=0; i<bestPath.length; i++ ) {
+            int e = bestPath[i];
+            if( !vocabulary.isSilence(lattice.getEdgeLabel(e)) ) {
+                starts[numSlots] = lattice.getNodeTime(lattice.getEdgeSource(e));
+                ends[numSlots] = lattice.getNodeTime(lattice.getEdgeTarget(e));
+                slotOf[e] = numSlots++;
+            }
+        }
+        this.slotStarts = Arrays.copyOf(starts, numSlots);
+        this.slotEnds = Arrays.copyOf(ends, numSlots);
+
+        // Assign every other edge to a slot, then bucket edges by slot
+        double[] posteriors = lattice.computePosteriors(lmScale, acousticScale);
+        int[] slotSizes = new int[numSlots + 1];
+        for( int e=0; e<numEdges; e++ ) {
+            if( numSlots > 0 && slotOf[e] < 0 && posteriors[e] > 0
+                    && !vocabulary.isSilence(lattice.getEdgeLabel(e)) ) {
+                slotOf[e] = nearestSlot(lattice.getNodeTime(lattice.getEdgeSource(e)),
+                                        lattice.getNodeTime(lattice.getEdgeTarget(e)));
+            }
+            if( slotOf[e] >= 0 ) {
+                slotSizes[slotOf[e] + 1]++;
+            }
+        }
+        for( int i=0; i<numSlots; i++ ) {
+            slotSizes[i + 1] += slotSizes[i];
+        }
+        // Each entry packs (label, edge) so that sorting a slot's entries
+        // brings edges with the same word together
+        long[] entries = new long[slotSizes[numSlots]];
+        int[] next = Arrays.copyOf(slotSizes, numSlots);
+        for( int e=0; e<numEdges; e++ ) {
+            if( slotOf[e] >= 0 ) {
+                entries[next[slotOf[e]]++] = ((long)lattice.getEdgeLabel(e) << 32) | e;
+            }
+        }
+
+        this.slotWords = new int[numSlots][];
+        this.slotPosteriors = new double[numSlots][];
+        for( int i=0; i<numSlots; i++ ) {
+            Arrays.sort(entries, slotSizes[i], slotSizes[i + 1]);
+            int[] words = new int[slotSizes[i + 1] - slotSizes[i]];
+            double[] sums = new double[words.length];
+            int count = 0;
+            double total = 0;
+            for( int k=slotSizes[i]; k<slotSizes[i + 1]; k++ ) {
+                int word = (int)(entries[k] >>> 32);
+                double posterior = posteriors[(int)entries[k]];
+                if( count == 0 || words[count - 1] != word ) {
+                    words[count++] = word;
+                }
+                sums[count - 1] += posterior;
+                total += posterior;
+            }
+            if( total > 1 ) {
+                for( int k=0; k<count; k++ ) {
+                    sums[k] /= total;
+                }
+            }
+            sortByPosterior(words, sums, count);
+            this.slotWords[i] = Arrays.copyOf(words, count);
+            this.slotPosteriors[i] = Arrays.copyOf(sums, count);
+        }
+    }
+
+    // nearestSlot
+    // Preconditions:
+    //     - There is at least one slot, and start <= end
+    // Post-conditions
+    //     - Returns the slot whose span overlaps start..end the most, or if
+    //       none overlaps it, the slot nearest the midpoint of start..end
+    // Notes:
+    //     - The slots follow a path, so their spans are ordered and do not
+    //       overlap; a binary search finds the first candidate and only the
+    //       slots actually overlapped are scanned
+    private int nearestSlot(double start, double end) {
+        int low = 0, high = this.slotEnds.length;
+        while( low < high ) {
+            int middle = (low + high) >>> 1;
+            if( this.slotEnds[middle] <= start ) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        int best = -1;
+        double bestOverlap = 0;
+        for( int i=low; i<this.slotStarts.length && this.slotStarts[i] < end; i++ ) {
+            double overlap = Math.min(end, this.slotEnds[i]) - Math.max(start, this.slotStarts[i]);
+            if( overlap > bestOverlap ) {
+                best = i;
+                bestOverlap = overlap;
+            }
+        }
+        if( best >= 0 ) {
+            return best;
+        }
+
+        double middle = (start + end) / 2;
+        if( low == this.slotStarts.length ) {
+            return low - 1;
+        }
+        if( low == 0 ) {
+            return 0;
+        }
+        return middle - this.slotEnds[low - 1] <= this.slotStarts[low] - middle ? low - 1 : low;
+    }
+
+    // sortByPosterior
+    // Preconditions:
+    //     - words and posteriors hold count parallel entries
+    // Post-conditions
+    //     - The entries are reordered by descending posterior, ties keeping
+    //       ascending word id
+    // Notes:
+    //     - Slots hold a handful of words, so insertion sort is used
+    private static void sortByPosterior(int[] words, double[] posteriors, int count) {
+        for( int i=1; i<count; i++ ) {
+            int word = words[i];
+            double posterior = posteriors[i];
+            int j = i - 1;
+            while( j >= 0 && posteriors[j] < posterior ) {
+                words[j + 1] = words[j];
+                posteriors[j + 1] = posteriors[j];
+                j--;
+            }
+            words[j + 1] = word;
+            posteriors[j + 1] = posterior;
+        }
+    }
+
+    // Accessors
+
+    // getUtteranceID
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the utterance ID of the lattice the network was built from
+    public String getUtteranceID() {
+        return this.utteranceID;
+    }
+
+    // getNumSlots
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of slots
+    public int getNumSlots() {
+        return this.slotWords.length;
+    }
+
+    // getStartTime
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the time at which the slot starts, in seconds
+    public double getStartTime(int slot) {
+        return this.slotStarts[slot];
+    }
+
+    // getEndTime
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the time at which the slot ends, in seconds
+    public double getEndTime(int slot) {
+        return this.slotEnds[slot];
+    }
+
+    // getNumWords
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the number of distinct words competing in the slot
+    public int getNumWords(int slot) {
+        return this.slotWords[slot].length;
+    }
+
+    // getWord
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots() and 0 <= k < getNumWords(slot)
+    // Post-conditions
+    //     - Returns the k'th most probable word in the slot
+    public String getWord(int slot, int k) {
+        return Vocabulary.getGlobal().getWord(this.slotWords[slot][k]);
+    }
+
+    // getPosterior
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots() and 0 <= k < getNumWords(slot)
+    // Post-conditions
+    //     - Returns the posterior probability of the k'th most probable word
+    //       in the slot
+    public double getPosterior(int slot, int k) {
+        return this.slotPosteriors[slot][k];
+    }
+
+    // getDeletionPosterior
+    // Preconditions:
+    //     - 0 <= slot < getNumSlots()
+    // Post-conditions
+    //     - Returns the probability that no word is said in the slot: one
+    //       minus the slot's word posteriors
+    public double getDeletionPosterior(int slot) {
+        double total = 0;
+        for( int k=0; k<this.slotPosteriors[slot].length; k++ ) {
+            total += this.slotPosteriors[slot][k];
+        }
+        return Math.max(0, 1 - total);
+    }
+
+    // consensus
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the consensus hypothesis: the most probable word of each
+    //       slot, in order, leaving out slots where a deletion is more
+    //       probable than any word
+    //     - Each word's score is the negative natural log of its posterior,
+    //       so the path score is lowest for the most confident hypothesis
+    public Hypothesis consensus() {
+        Hypothesis hypothesis = new Hypothesis();
+        for( int i=0; i<this.slotWords.length; i++ ) {
+            if( this.slotWords[i].length > 0 && this.slotPosteriors[i][0] >= getDeletionPosterior(i) ) {
+                hypothesis.addWord(this.slotWords[i][0], -Math.log(this.slotPosteriors[i][0]));
+            }
+        }
+        return hypothesis;
+    }
+
+    // toString
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the network as text: an "id" line, then one line per
+    //       slot with its start and end times followed by word/posterior
+    //       pairs, most probable first, and the deletion posterior as "*"
+    public String toString() {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        StringBuilder result = new StringBuilder();
+        result.append("id ").append(this.utteranceID).append('\n');
+        for( int i=0; i<this.slotWords.length; i++ ) {
+            result.append("slot ").append(i).append(' ')
+                  .append(String.format("%.2f %.2f", this.slotStarts[i], this.slotEnds[i]));
+            for( int k=0; k<this.slotWords[i].length; k++ ) {
+                result.append(' ').append(vocabulary.getWord(this.slotWords[i][k]))
+                      .append(' ').append(String.format("%.4f", this.slotPosteriors[i][k]));
+            }
+            result.append(" * ").append(String.format("%.4f", getDeletionPosterior(i))).append('\n');
+        }
+        return result.toString();
+    }
+}
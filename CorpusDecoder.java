@@ -0,0 +1,269 @@
+/*
+ * CorpusDecoder.java
+ *
+ * Decodes a whole corpus of lattice files in parallel on a ForkJoinPool and
+ * streams the hypotheses to a Sink.
+ *
+ * Lattices vary in size by orders of magnitude, and a run is only as fast
+ * as its last lattice, so files are decoded largest first: the header of
+ * every file is read to find its numEdges, and each worker thread pulls
+ * the next largest file from a shared cursor when it finishes the last.
+ * The big lattices start at once and the small ones fill in around them,
+ * keeping every core busy until the end.
+ *
+ * Results reach the sink either as each lattice finishes (COMPLETION) or
+ * in the order the files were given (INPUT), in which case finished
+ * hypotheses wait in a reorder buffer until every earlier file is done.
+ * Calls to the sink are never concurrent, so it need not be thread-safe.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class CorpusDecoder {
+    // Order - the order in which results are passed to the sink
+    public enum Order {
+        INPUT,         // The order of the file list
+        COMPLETION     // As soon as each lattice is decoded
+    }
+
+    // Sink - receives one call per file
+    public interface Sink {
+        // accept - file (at position index in the file list) decoded to hypothesis
+        void accept(int index, Path file, Hypothesis hypothesis);
+
+        // failed - file (at position index in the file list) could not be loaded
+        void failed(int index, Path file, IOException error);
+    }
+
+    private final ForkJoinPool pool;
+    private final double lmScale;
+    private final Order order;
+
+    // Constructor
+
+    // CorpusDecoder
+    // Preconditions:
+    //     - pool is the pool to decode on; its parallelism sets the number
+    //       of lattices decoded at once
+    //     - lmScale is passed to Lattice.decode
+    //     - order says in which order the sink receives results
+    // Post-conditions
+    //     - A decoder is created; nothing is decoded until decode is called
+    public CorpusDecoder(ForkJoinPool pool, double lmScale, Order order) {
+        this.pool = pool;
+        this.lmScale = lmScale;
+        this.order = order;
+    }
+
+    // listLattices
+    // Preconditions:
+    //     - directory is a directory of lattice files
+    // Post-conditions
+    //     - Returns the *.lattice files in directory, sorted by name
+    public static List<Path> listLattices(Path directory) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.lattice");
+        try {
+            for( Path file : stream ) {
+                files.add(file);
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    // decode
+    // Preconditions:
+    //     - files lists the lattice files to decode
+    //     - sink receives the results
+    // Post-conditions
+    //     - Every file has been loaded and decoded, and the sink has received
+    //       exactly one accept or failed call for it, in the decoder's order
+    //     - Returns when all files are done
+    // Notes:
+    //     - Files that cannot be read or parsed go to Sink.failed and do not
+    //       stop the run; an exception thrown by the sink, or any other
+    //       unexpected exception, stops the remaining work and is rethrown
+    public void decode(List<Path> files, Sink sink) {
+        final Path[] paths = files.toArray(new Path[files.size()]);
+        final int[] schedule = largestFirst(paths);
+        final Results results = new Results(paths, sink, this.order);
+        runWorkers(schedule.length, new IndexedTask() {
+            public void run(int next) {
+                int index = schedule[next];
+                try {
+                    Lattice lattice = new Lattice(paths[index].toString());
+                    results.done(index, lattice.decode(CorpusDecoder.this.lmScale), null);
+                } catch( IOException e ) {
+                    results.done(index, null, e);
+                }
+            }
+        });
+    }
+
+    // largestFirst
+    // Preconditions:
+    //     - files lists the lattice files to decode
+    // Post-conditions
+    //     - Returns the positions of the files in files, ordered by
+    //       descending numEdges (ties in list order)
+    // Notes:
+    //     - Headers are read in parallel on the decoder's pool
+    private int[] largestFirst(final Path[] files) {
+        final long[] keys = new long[files.length];
+        runWorkers(files.length, new IndexedTask() {
+            public void run(int i) {
+                // Descending size in the high bits, list position in the low
+                keys[i] = ((long)(Integer.MAX_VALUE - peekNumEdges(files[i])) << 32) | i;
+            }
+        });
+        Arrays.sort(keys);
+        int[] schedule = new int[files.length];
+        for( int i=0; i<files.length; i++ ) {
+            schedule[i] = (int)keys[i];
+        }
+        return schedule;
+    }
+
+    // IndexedTask - work on the i'th item of a batch
+    private interface IndexedTask {
+        void run(int i);
+    }
+
+    // runWorkers
+    // Preconditions:
+    //     - task can run on items 0..count-1 from any thread
+    // Post-conditions
+    //     - task has run once for every item, in ascending order of i across
+    //       as many workers as the pool's parallelism
+    //     - If task throws, the workers stop taking new items and the first
+    //       exception is rethrown
+    // Notes:
+    //     - Each worker pulls the next item from a shared cursor, so items
+    //       start strictly in order and a worker that finishes early simply
+    //       takes more of them
+    private void runWorkers(final int count, final IndexedTask task) {
+        final AtomicInteger cursor = new AtomicInteger();
+        final AtomicBoolean aborted = new AtomicBoolean();
+        int numWorkers = Math.min(this.pool.getParallelism(), count);
+        List<ForkJoinTask<?>> workers = new ArrayList<ForkJoinTask<?>>(numWorkers);
+        for( int w=0; w<numWorkers; w++ ) {
+            workers.add(this.pool.submit(new Runnable() {
+                public void run() {
+                    int next;
+                    while( !aborted.get() && (next = cursor.getAndIncrement()) < count ) {
+                        try {
+                            task.run(next);
+                        } catch( RuntimeException | Error e ) {
+                            aborted.set(true);
+                            throw e;
+                        }
+                    }
+                }
+            }));
+        }
+        RuntimeException failure = null;
+        for( ForkJoinTask<?> worker : workers ) {
+            try {
+                worker.join();
+            } catch( RuntimeException e ) {
+                if( failure == null ) {
+                    failure = e;
+                }
+            }
+        }
+        if( failure != null ) {
+            throw failure;
+        }
+    }
+
+    // peekNumEdges
+    // Preconditions:
+    //     - file is a lattice file
+    // Post-conditions
+    //     - Returns the numEdges declared in the file's header, or 0 if the
+    //       header cannot be read (the file then fails when it is decoded)
+    static int peekNumEdges(Path file) {
+        try( BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+            for( int i=0; i<5; i++ ) {
+                String line = reader.readLine();
+                if( line == null ) {
+                    break;
+                }
+                String[] fields = line.trim().split("\\s+");
+                if( fields.length == 2 && fields[0].equals("numEdges") ) {
+                    return Math.max(0, Integer.parseInt(fields[1]));
+                }
+            }
+        } catch( IOException | RuntimeException e ) {
+            // Not readable or malformed; decode reports it
+        }
+        return 0;
+    }
+
+    // Results - hands finished lattices to the sink, one call at a time,
+    //   either at once or through a reorder buffer that releases results in
+    //   input order
+    private static final class Results {
+        private final Path[] files;
+        private final Sink sink;
+        private final Order order;
+        private final Hypothesis[] hypotheses;   // Reorder buffer (INPUT order only)
+        private final IOException[] errors;
+        private final boolean[] finished;
+        private int nextToEmit;                  // Guarded by this
+
+        Results(Path[] files, Sink sink, Order order) {
+            this.files = files;
+            this.sink = sink;
+            this.order = order;
+            int buffered = order == Order.INPUT ? files.length : 0;
+            this.hypotheses = new Hypothesis[buffered];
+            this.errors = new IOException[buffered];
+            this.finished = new boolean[buffered];
+        }
+
+        // done - file index has finished with a hypothesis or an error
+        synchronized void done(int index, Hypothesis hypothesis, IOException error) {
+            if( this.order == Order.COMPLETION ) {
+                emit(index, hypothesis, error);
+                return;
+            }
+            this.hypotheses[index] = hypothesis;
+            this.errors[index] = error;
+            this.finished[index] = true;
+            while( this.nextToEmit < this.files.length && this.finished[this.nextToEmit] ) {
+                int next = this.nextToEmit++;
+                emit(next, this.hypotheses[next], this.errors[next]);
+                this.hypotheses[next] = null;
+                this.errors[next] = null;
+            }
+        }
+
+        private void emit(int index, Hypothesis hypothesis, IOException error) {
+            if( error == null ) {
+                this.sink.accept(index, this.files[index], hypothesis);
+            } else {
+                this.sink.failed(index, this.files[index], error);
+            }
+        }
+    }
+}
@@ -14,7 +14,8 @@
  */
 
 public class Edge {
-    private String label;          // The word associated with the edge
+    private int labelId;           // The word associated with the edge, as a
+                                   // global Vocabulary id
     private int amScore, lmScore;  // The acoustic and language model scores
                                    // (A speech recognizer trades off scores of
                                    //  these two models to find the best path)
@@ -26,11 +27,11 @@ public class Edge {
     //     - label, amScore and lmScore contain the label and two weights
     //       associated with the edge to be constructed
     // Post-conditions
-    //     - Field this.label is set to label
+    //     - Field this.labelId is set to the Vocabulary id of label
     //     - Field this.amScore is set to amScore
     //     - Field this.lmScore is set to lmScore
     public Edge(String label, int amScore, int lmScore) {
-        this.label = label;
+        this.labelId = Vocabulary.getGlobal().intern(label);
         this.amScore = amScore;
         this.lmScore = lmScore;
         return;
@@ -40,11 +41,11 @@ public class Edge {
     // Preconditions:
     //     - e is an Edge to be copied
     // Post-conditions
-    //     - this.label initialized to e's label
+    //     - this.labelId initialized to e's labelId
     //     - this.lmScore initialized to e's lmScore
     //     - this.amScore initialized to e's amScore
     public Edge(Edge e) {
-        this.label = e.getLabel();
+        this.labelId = e.getLabelId();
         this.amScore = e.getAmScore();
         this.lmScore = e.getLmScore();
     }
@@ -55,9 +56,18 @@ public class Edge {
     // Preconditions:
     //     - None
     // Post-conditions
-    //     - Return's this.label
+    //     - Return's the word with id this.labelId
     public String getLabel() {
-        return this.label;
+        return Vocabulary.getGlobal().getWord(this.labelId);
+    }
+
+    // getLabelId
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Return's this.labelId
+    public int getLabelId() {
+        return this.labelId;
     }
 
     // getLmScore
@@ -0,0 +1,120 @@
+/*
+ * EditDistance.java
+ *
+ * Word-level Levenshtein distance between two sequences of Vocabulary ids,
+ * computed with the bit-parallel algorithm of Myers (1999) in the
+ * multi-block form given by Hyyro (2003).
+ *
+ * The shorter sequence (the "pattern") is laid out as bits, 64 words to a
+ * long.  Each column of the edit distance matrix, for one word of the
+ * longer sequence, is then updated a whole block of 64 rows at a time with
+ * a handful of bitwise operations on the vertical differences between
+ * neighbouring cells, which are always -1, 0 or +1.  This takes
+ * O(ceil(m/64) * n) time and O(m) memory, against O(m * n) for both in
+ * the textbook dynamic program.
+ *
+ * A distance limit lets a caller give up early: the distance can never
+ * drop by more than one per remaining word of the longer sequence, so once
+ * the last row exceeds the limit by more than that, the answer is known to
+ * be over it.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.Arrays;
+
+final class EditDistance {
+    private EditDistance() {
+    }
+
+    // distance
+    // Preconditions:
+    //     - a[0..aLength-1] and b[0..bLength-1] are word id sequences; ids
+    //       are compared for equality only, so negative ids may stand for
+    //       words outside the vocabulary as long as they differ from every
+    //       id in the other sequence
+    //     - maxEdits >= 0 is the largest distance the caller is interested
+    //       in (Integer.MAX_VALUE for no limit)
+    // Post-conditions
+    //     - Returns the minimum number of substitutions, insertions and
+    //       deletions that turn one sequence into the other, or -1 if that
+    //       number is greater than maxEdits
+    static int distance(int[] a, int aLength, int[] b, int bLength, int maxEdits) {
+        if( aLength > bLength ) {
+            return distance(b, bLength, a, aLength, maxEdits);
+        }
+        int[] pattern = a, text = b;
+        int m = aLength, n = bLength;
+        if( n - m > maxEdits ) {
+            return -1;
+        }
+        if( m == 0 ) {
+            return n;
+        }
+
+        // Number the distinct pattern words 0..numSymbols-1, and record for
+        // each one the rows (bits) where it occurs: peq[symbol * numBlocks + block]
+        int[] symbols = Arrays.copyOf(pattern, m);
+        Arrays.sort(symbols);
+        int numSymbols = 0;
+        for( int i=0; i<m; i++ ) {
+            if( numSymbols == 0 || symbols[numSymbols - 1] != symbols[i] ) {
+                symbols[numSymbols++] = symbols[i];
+            }
+        }
+        int numBlocks = (m + 63) >>> 6;
+        long[] peq = new long[numSymbols * numBlocks];
+        for( int i=0; i<m; i++ ) {
+            int symbol = Arrays.binarySearch(symbols, 0, numSymbols, pattern[i]);
+            peq[symbol * numBlocks + (i >>> 6)] |= 1L << (i & 63);
+        }
+
+        // Column 0: D[i][0] = i, so every vertical difference is +1
+        long[] pv = new long[numBlocks];
+        long[] mv = new long[numBlocks];
+        Arrays.fill(pv, -1L);
+        long lastRow = 1L << ((m - 1) & 63);
+        int score = m;                      // D[m][j], the bottom of the current column
+        for( int j=0; j<n; j++ ) {
+            int symbol = Arrays.binarySearch(symbols, 0, numSymbols, text[j]);
+            int offset = symbol < 0 ? -1 : symbol * numBlocks;
+            int hin = 1;                    // D[0][j+1] - D[0][j], as row 0 counts up
+            for( int k=0; k<numBlocks; k++ ) {
+                long eq = offset < 0 ? 0 : peq[offset + k];
+                long pvk = pv[k], mvk = mv[k];
+                long xv = eq | mvk;
+                if( hin < 0 ) {
+                    eq |= 1;
+                }
+                long xh = (((eq & pvk) + pvk) ^ pvk) | eq;
+                long ph = mvk | ~(xh | pvk);
+                long mh = pvk & xh;
+                if( k == numBlocks - 1 ) {
+                    // Horizontal difference on the pattern's last row
+                    if( (ph & lastRow) != 0 ) {
+                        score++;
+                    } else if( (mh & lastRow) != 0 ) {
+                        score--;
+                    }
+                }
+                int hout = ph < 0 ? 1 : (mh < 0 ? -1 : 0);
+                ph <<= 1;
+                mh <<= 1;
+                if( hin < 0 ) {
+                    mh |= 1;
+                } else if( hin > 0 ) {
+                    ph |= 1;
+                }
+                pv[k] = mh | ~(xv | ph);
+                mv[k] = ph & xv;
+                hin = hout;
+            }
+            // Each of the n-j-1 remaining columns lowers the score by at most 1
+            if( score - (n - j - 1) > maxEdits ) {
+                return -1;
+            }
+        }
+        return score;
+    }
+}
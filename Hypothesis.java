@@ -12,7 +12,8 @@
 
 public class Hypothesis {
     private double pathScore;                  // Stores the cumulative path score
-    private java.util.ArrayList<String> words; // Array of words in the path
+    private int[] words;                       // Global Vocabulary ids of the words
+    private int numWords;                      //   in the path, words[0..numWords-1]
 
     // Constructor
 
@@ -20,10 +21,10 @@ public class Hypothesis {
     // Preconditions:
     //     - None
     // Post-conditions
-    //     - this.words points to a new, empty, ArrayList object
+    //     - this.words points to a new, empty, array of word ids
     //     - this.pathScore == 0
     public Hypothesis() {
-        words = new java.util.ArrayList<String>();
+        words = new int[16];
     }
 
     // Mutator/Modifier
@@ -47,15 +48,28 @@ public class Hypothesis {
     //     - If word is not "-silence-" and DOES NOT contain an underscore
     //            word is added to the end of words, so that words is one longer
     //            the combinedScore is added to the pathScore
-    // Hints:
-    //     - To split a word into individual words, see String's split method
+    // Notes:
+    //     - word is interned in the global Vocabulary, which has already
+    //       worked out whether it is -silence- and how it splits
     public void addWord(String word, double combinedScore) {
+        addWord(Vocabulary.getGlobal().intern(word), combinedScore);
+    }
+
+    // addWord
+    // Preconditions:
+    //     - wordId is the global Vocabulary id of the next word in the path
+    //     - combinedScore is the weight on the corresponding edge
+    // Post-conditions
+    //     - Same as addWord(String, double) for the word with id wordId
+    public void addWord(int wordId, double combinedScore) {
         pathScore += combinedScore;
-        if( !word.equals("-silence-") ) {
-            String[] parts = word.split("_");
-            for( int i=0; i<parts.length; i++ ) {
-                words.add(parts[i]);
-            }
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        int[] parts = vocabulary.wordParts(wordId);
+        if( numWords + parts.length > words.length ) {
+            words = java.util.Arrays.copyOf(words, Math.max(2 * words.length, numWords + parts.length));
+        }
+        for( int i=0; i<parts.length; i++ ) {
+            words[numWords++] = parts[i];
         }
     }
 
@@ -78,11 +92,12 @@ public class Hypothesis {
     //       is returned, obtained by concatenating the individual words
     //       in the hypothesis (with spaces in-between)
     public String getHypothesisString() {
-        String result = "";
-        for( int i=0; i<words.size(); i++ ) {
-            result += words.get(i) + " ";
-        }    
-        return result;
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        StringBuilder result = new StringBuilder(8 * numWords);
+        for( int i=0; i<numWords; i++ ) {
+            result.append(vocabulary.getWord(words[i])).append(' ');
+        }
+        return result.toString();
     }
 
     // computeWER
@@ -96,52 +111,108 @@ public class Hypothesis {
     //        the hypothesis and reference word sequences.  Given that, WER
     //          is simply the minimum edit distance divided by the number of words
     //        in the reference sequence
-    public double computeWER(String referenceFilename) {
-        java.util.Scanner input = null;
-        try {
-            input = new java.util.Scanner(new java.io.File(referenceFilename));
-        } catch( java.io.FileNotFoundException e ) {
-            System.out.println("Error: File " + referenceFilename + " not found");
-            System.exit(1);
-        }
+    // Notes:
+    //     - Throws java.io.FileNotFoundException (an IOException) if the
+    //       reference file cannot be opened
+    public double computeWER(String referenceFilename) throws java.io.IOException {
+        return computeWER(referenceFilename, Double.POSITIVE_INFINITY);
+    }
 
-        java.util.ArrayList<String> reference = new java.util.ArrayList<String>();
-        while( input.hasNext() ) {
-            reference.add(input.next());
-        }
-        
-        double[][] d = new double[words.size()+1][reference.size()+1];
-        for( int i=0; i<=words.size(); i++ ) {
-            d[i][0] = i;
-        }
-        for( int j=0; j<=reference.size(); j++ ) {
-            d[0][j] = j;
+    // computeWER
+    // Preconditions:
+    //     - referenceFilename is the name of a file with the reference transcript
+    //     - maxWER >= 0 is the highest WER the caller is interested in
+    //     - The hypothesis has already been created via calls to addWord
+    // Post-conditions
+    //     - Returns the WER of the hypothesis with respect to the reference
+    //       transcript, as computeWER(referenceFilename) does, if it is at
+    //       most maxWER, and Double.POSITIVE_INFINITY otherwise
+    // Notes:
+    //     - Reference words are mapped to Vocabulary ids, so words are
+    //       compared as ints
+    //     - The edit distance is computed bit-parallel (see EditDistance), 64
+    //       hypothesis words at a time, and stops as soon as it is sure to
+    //       exceed maxWER
+    //     - Throws IllegalArgumentException if maxWER is negative or NaN
+    public double computeWER(String referenceFilename, double maxWER) throws java.io.IOException {
+        if( !(maxWER >= 0) ) {
+            throw new IllegalArgumentException("maxWER must be at least 0: " + maxWER);
         }
-        for( int j=1; j<=reference.size(); j++ ) {
-            for( int i=1; i<=words.size(); i++ ) {
-                if( words.get(i-1).equals(reference.get(j-1)) ) {
-                    d[i][j] = d[i-1][j-1];
-                } else {
-                    d[i][j] = 1+min3(d[i-1][j],d[i][j-1],d[i-1][j-1]);
-                }
+        int[] reference = readReference(referenceFilename);
+        int numReference = reference.length;
+
+        // maxEdits is the largest k with k / numReference <= maxWER, in the
+        // same double division as the result: maxWER * numReference may
+        // round just below an integer (0.57 * 100 is 56.99999999999999)
+        int maxEdits = Integer.MAX_VALUE;
+        if( numReference > 0 && maxWER * numReference < Integer.MAX_VALUE - 1 ) {
+            maxEdits = (int)Math.floor(maxWER * numReference);
+            while( (double)(maxEdits + 1) / numReference <= maxWER ) {
+                maxEdits++;
             }
         }
+        int edits = editDistance(reference, numReference, maxEdits);
+        double wer = (double)edits / numReference;
+        return edits < 0 || wer > maxWER ? Double.POSITIVE_INFINITY : wer;
+    }
+
+    // align
+    // Preconditions:
+    //     - referenceFilename is the name of a file with the reference transcript
+    //     - The hypothesis has already been created via calls to addWord
+    // Post-conditions
+    //     - Returns a minimum edit distance alignment of the hypothesis
+    //       against the reference transcript, with its substitutions,
+    //       insertions and deletions; its WER is the one computeWER returns
+    // Notes:
+    //     - Throws java.io.FileNotFoundException (an IOException) if the
+    //       reference file cannot be opened
+    public Alignment align(String referenceFilename) throws java.io.IOException {
+        int[] reference = readReference(referenceFilename);
+        return align(reference, reference.length);
+    }
 
-        return d[words.size()][reference.size()]/reference.size();
+    // align
+    // Preconditions:
+    //     - reference[0..referenceLength-1] are the Vocabulary ids of the
+    //       reference words
+    // Post-conditions
+    //     - Returns a minimum edit distance alignment of the hypothesis
+    //       against the reference
+    Alignment align(int[] reference, int referenceLength) {
+        return Alignment.compute(words, numWords, reference, referenceLength);
     }
 
-    // min3
+    // readReference
     // Preconditions:
-    //     - a, b and c are values to be compared
+    //     - referenceFilename is the name of a file with the reference transcript
     // Post-conditions
-    //     - The smallest value out of a, b and c is returned
-    private double min3(double a, double b, double c) {
-        if( a<b && a<c ) {
-            return a;
-        } else if( b<a && b<c ) {
-            return b;
-        } else {
-            return c;
+    //     - Returns the Vocabulary ids of the transcript's words, in order;
+    //       words are separated by whitespace and interned as they are
+    static int[] readReference(String referenceFilename) throws java.io.IOException {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        int[] reference = new int[64];
+        int numReference = 0;
+        try( java.util.Scanner input = new java.util.Scanner(new java.io.File(referenceFilename)) ) {
+            while( input.hasNext() ) {
+                if( numReference == reference.length ) {
+                    reference = java.util.Arrays.copyOf(reference, 2 * numReference);
+                }
+                reference[numReference++] = vocabulary.intern(input.next());
+            }
         }
+        return java.util.Arrays.copyOf(reference, numReference);
+    }
+
+    // editDistance
+    // Preconditions:
+    //     - reference[0..referenceLength-1] are the Vocabulary ids of the
+    //       reference words (negative for words that cannot match)
+    //     - maxEdits >= 0, or Integer.MAX_VALUE for no limit
+    // Post-conditions
+    //     - Returns the minimum edit distance between the hypothesis and
+    //       the reference, or -1 if it is greater than maxEdits
+    int editDistance(int[] reference, int referenceLength, int maxEdits) {
+        return EditDistance.distance(words, numWords, reference, referenceLength, maxEdits);
     }
-}
\ No newline at end of file
+}
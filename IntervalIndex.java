@@ -0,0 +1,201 @@
+/*
+ * IntervalIndex.java
+ *
+ * A static centered interval tree over a fixed set of closed time intervals
+ * [start, end], one per id (the edges of a lattice, spanning the times of
+ * their start and end nodes).  It answers "which intervals contain time t"
+ * and "which intervals overlap [t0, t1]" in O(log n + k) time, where k is
+ * the number of intervals reported.
+ *
+ * Each tree node has a center time and holds the intervals that contain
+ * it, listed twice: by ascending start and by descending end.  Intervals
+ * entirely before the center go to the left subtree and intervals entirely
+ * after it to the right, so a point query walks one root-to-leaf path and
+ * only scans node lists for as long as they produce hits.  The tree is stored
+ * flat, in arrays indexed by tree node.
+ *
+ * The index is immutable once built.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.Arrays;
+
+final class IntervalIndex {
+    private final double[] starts, ends;   // The interval for each id
+    private int numTreeNodes;
+    private double[] centers;              // centers[t] is tree node t's center time
+    private int[] leftChild, rightChild;   // Child tree nodes, -1 if none
+    private int[] listOffsets;             // Tree node t holds the intervals
+    private int[] byStart;                 //   byStart[listOffsets[t]] .. byStart[listOffsets[t+1]-1],
+    private int[] byEnd;                   //   and the same ids in byEnd, sorted by
+                                           //   ascending start and descending end
+    private int listed;                    // Entries of byStart/byEnd filled so far
+
+    // Constructor
+
+    // IntervalIndex
+    // Preconditions:
+    //     - starts and ends have the same length; interval id is
+    //       [starts[id], ends[id]], with starts[id] <= ends[id]
+    // Post-conditions
+    //     - The index over all the intervals is built, in O(n log^2 n) time
+    IntervalIndex(double[] starts, double[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        int n = starts.length;
+        this.centers = new double[Math.max(n, 1)];
+        this.leftChild = new int[this.centers.length];
+        this.rightChild = new int[this.centers.length];
+        this.listOffsets = new int[this.centers.length + 1];
+        this.byStart = new int[n];
+        this.byEnd = new int[n];
+        int[] ids = new int[n];
+        for( int id=0; id<n; id++ ) {
+            ids[id] = id;
+        }
+        if( n > 0 ) {
+            build(ids, n);
+        }
+        this.centers = Arrays.copyOf(this.centers, this.numTreeNodes);
+        this.leftChild = Arrays.copyOf(this.leftChild, this.numTreeNodes);
+        this.rightChild = Arrays.copyOf(this.rightChild, this.numTreeNodes);
+        this.listOffsets = Arrays.copyOf(this.listOffsets, this.numTreeNodes + 1);
+    }
+
+    // build
+    // Preconditions:
+    //     - ids[0..count-1] is a non-empty set of interval ids
+    // Post-conditions
+    //     - Returns the tree node built for the intervals, with its subtrees
+    // Notes:
+    //     - The center is the median interval midpoint, so at least half of
+    //       the intervals are either held at the node or sent to one side,
+    //       and the depth stays O(log n)
+    private int build(int[] ids, int count) {
+        double[] midpoints = new double[count];
+        for( int i=0; i<count; i++ ) {
+            midpoints[i] = (this.starts[ids[i]] + this.ends[ids[i]]) / 2;
+        }
+        Arrays.sort(midpoints);
+        double center = midpoints[count / 2];
+
+        int[] left = new int[count], right = new int[count], here = new int[count];
+        int numLeft = 0, numRight = 0, numHere = 0;
+        for( int i=0; i<count; i++ ) {
+            int id = ids[i];
+            if( this.ends[id] < center ) {
+                left[numLeft++] = id;
+            } else if( this.starts[id] > center ) {
+                right[numRight++] = id;
+            } else {
+                here[numHere++] = id;
+            }
+        }
+
+        int node = this.numTreeNodes++;
+        this.centers[node] = center;
+        this.listOffsets[node] = this.listed;
+        sortByKey(here, numHere, this.starts, false);
+        System.arraycopy(here, 0, this.byStart, this.listed, numHere);
+        sortByKey(here, numHere, this.ends, true);
+        System.arraycopy(here, 0, this.byEnd, this.listed, numHere);
+        this.listed += numHere;
+        this.listOffsets[node + 1] = this.listed;
+
+        this.leftChild[node] = numLeft > 0 ? build(left, numLeft) : -1;
+        this.rightChild[node] = numRight > 0 ? build(right, numRight) : -1;
+        return node;
+    }
+
+    // sortByKey
+    // Preconditions:
+    //     - ids[0..count-1] are interval ids and keys is starts or ends
+    // Post-conditions
+    //     - ids[0..count-1] is sorted by keys[id], ascending or descending;
+    //       ids with equal keys keep their order
+    // Notes:
+    //     - A merge sort on the primitive ids, so nothing is boxed
+    private static void sortByKey(int[] ids, int count, double[] keys, boolean descending) {
+        int[] buffer = new int[count];
+        for( int width=1; width<count; width*=2 ) {
+            for( int low=0; low<count-width; low+=2*width ) {
+                int middle = low + width, high = Math.min(low + 2 * width, count);
+                int i = low, j = middle, k = low;
+                while( i < middle && j < high ) {
+                    double a = keys[ids[i]], b = keys[ids[j]];
+                    buffer[k++] = (descending ? b > a : b < a) ? ids[j++] : ids[i++];
+                }
+                while( i < middle ) {
+                    buffer[k++] = ids[i++];
+                }
+                while( j < high ) {
+                    buffer[k++] = ids[j++];
+                }
+                System.arraycopy(buffer, low, ids, low, high - low);
+            }
+        }
+    }
+
+    // Accessors
+
+    // containing
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the ids of every interval with start <= time <= end,
+    //       in no particular order
+    int[] containing(double time) {
+        return overlapping(time, time);
+    }
+
+    // overlapping
+    // Preconditions:
+    //     - startTime <= endTime
+    // Post-conditions
+    //     - Returns the ids of every interval that shares at least one point
+    //       with [startTime, endTime] (start <= endTime and end >= startTime),
+    //       in no particular order
+    int[] overlapping(double startTime, double endTime) {
+        int[] hits = new int[16];
+        int numHits = 0;
+        int[] pending = new int[64];     // Subtrees still to visit
+        int numPending = 0;
+        if( this.numTreeNodes > 0 ) {
+            pending[numPending++] = 0;
+        }
+        while( numPending > 0 ) {
+            int node = pending[--numPending];
+            double center = this.centers[node];
+            int first = this.listOffsets[node], last = this.listOffsets[node + 1];
+            if( numHits + (last - first) > hits.length ) {
+                hits = Arrays.copyOf(hits, Math.max(2 * hits.length, numHits + (last - first)));
+            }
+            if( endTime < center ) {
+                // Every interval here ends after endTime; those starting by it overlap
+                for( int i=first; i<last && this.starts[this.byStart[i]] <= endTime; i++ ) {
+                    hits[numHits++] = this.byStart[i];
+                }
+            } else if( startTime > center ) {
+                // Every interval here starts before startTime; those ending after it overlap
+                for( int i=first; i<last && this.ends[this.byEnd[i]] >= startTime; i++ ) {
+                    hits[numHits++] = this.byEnd[i];
+                }
+            } else {
+                System.arraycopy(this.byStart, first, hits, numHits, last - first);
+                numHits += last - first;
+            }
+            if( numPending + 2 > pending.length ) {
+                pending = Arrays.copyOf(pending, 2 * pending.length);
+            }
+            if( startTime < center && this.leftChild[node] >= 0 ) {
+                pending[numPending++] = this.leftChild[node];
+            }
+            if( endTime > center && this.rightChild[node] >= 0 ) {
+                pending[numPending++] = this.rightChild[node];
+            }
+        }
+        return Arrays.copyOf(hits, numHits);
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * KeywordIndex.java
+ *
+ * Defines a new "KeywordIndex" type: a persistent inverted index over a
+ * corpus of lattices that maps each word to every place it was possibly
+ * said, as (utterance ID, midpoint time, posterior) postings.  The index is
+ * built once from a directory of lattice files and then memory-mapped for
+ * queries, so searching never loads a lattice.
+ *
+ * File format, all fixed-width values little-endian:
+ *   header     int magic, int version, int numUtterances, int numWords,
+ *              long postingBytes
+ *   utterances int idOffsets[numUtterances+1] (byte offsets), then the
+ *              UTF-8 bytes of every utterance ID back to back
+ *   words      int wordOffsets[numWords+1], int postingCounts[numWords],
+ *              long postingOffsets[numWords+1], then the UTF-8 bytes of
+ *              every word back to back, in ascending String order
+ *   postings   postingBytes bytes; the postings of each word, ordered by
+ *              utterance and then time, each three unsigned varints:
+ *                utterance delta   utterance number minus the previous
+ *                                  posting's (the first counts from -1),
+ *                                  so 0 means "same utterance"
+ *                time              milliseconds, as a delta from the
+ *                                  previous posting in the same utterance
+ *                                  or absolute for a new utterance
+ *                score             posterior scaled to 0..65535
+ * Every section starts on a multiple of 8 bytes.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public final class KeywordIndex {
+    private static final int MAGIC = 0x5857494B;    // "KIWX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final double SCORE_SCALE = 65535;
+
+    // Hit - one place a word was possibly said
+    public static final class Hit {
+        private final String utteranceID;
+        private final double time, score;
+
+        Hit(String utteranceID, double time, double score) {
+            this.utteranceID = utteranceID;
+            this.time = time;
+            this.score = score;
+        }
+
+        // getUtteranceID - the ID of the utterance (lattice) of the hit
+        public String getUtteranceID() {
+            return this.utteranceID;
+        }
+
+        // getTime - the midpoint of the hit's edge, in seconds (to 1 ms)
+        public double getTime() {
+            return this.time;
+        }
+
+        // getScore - the edge's posterior probability (to 1/65535)
+        public double getScore() {
+            return this.score;
+        }
+
+        // toString - "utteranceID time score"
+        public String toString() {
+            return this.utteranceID + " " + String.format("%.3f %.4f", this.time, this.score);
+        }
+    }
+
+    // Failures - told about the lattice files build had to leave out
+    public interface Failures {
+        // failed - file could not be loaded as a lattice
+        void failed(Path file, IOException error);
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int numUtterances, numWords;
+    private final int idOffsetsAt, idBytesAt;              // Section positions
+    private final int wordOffsetsAt, postingCountsAt, postingOffsetsAt, wordBytesAt, postingsAt;
+
+    // Constructor
+
+    // KeywordIndex
+    // Preconditions:
+    //     - buffer maps a whole index file
+    // Post-conditions
+    //     - The header has been checked and the section positions worked out
+    private KeywordIndex(MappedByteBuffer buffer, String source) throws IOException {
+        this.buffer = buffer;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if( buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC ) {
+            throw new IOException(source + " is not a keyword index");
+        }
+        if( buffer.getInt(4) != VERSION ) {
+            throw new IOException(source + " has unsupported keyword index version " + buffer.getInt(4));
+        }
+        this.numUtterances = buffer.getInt(8);
+        this.numWords = buffer.getInt(12);
+        long postingBytes = buffer.getLong(16);
+        try {
+            this.idOffsetsAt = HEADER_BYTES;
+            this.idBytesAt = align8(this.idOffsetsAt + 4 * (this.numUtterances + 1));
+            this.wordOffsetsAt = align8(this.idBytesAt + buffer.getInt(this.idOffsetsAt + 4 * this.numUtterances));
+            this.postingCountsAt = this.wordOffsetsAt + 4 * (this.numWords + 1);
+            this.postingOffsetsAt = align8(this.postingCountsAt + 4 * this.numWords);
+            this.wordBytesAt = this.postingOffsetsAt + 8 * (this.numWords + 1);
+            this.postingsAt = align8(this.wordBytesAt + buffer.getInt(this.wordOffsetsAt + 4 * this.numWords));
+        } catch( IndexOutOfBoundsException e ) {
+            throw new IOException(source + " is a truncated or corrupt keyword index", e);
+        }
+        if( this.numUtterances < 0 || this.numWords < 0 || this.postingsAt + postingBytes != buffer.capacity() ) {
+            throw new IOException(source + " is a truncated or corrupt keyword index");
+        }
+    }
+
+    // open
+    // Preconditions:
+    //     - indexPath is the path of a file written by build
+    // Post-conditions
+    //     - Returns the index, memory-mapped; nothing else is read until a
+    //       query needs it
+    // Notes:
+    //     - Throws IOException if the file cannot be read or is not an index
+    //     - A KeywordIndex may be queried from many threads at once
+    public static KeywordIndex open(Path indexPath) throws IOException {
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+        try {
+            if( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException(indexPath + " is too large to map");
+            }
+            return new KeywordIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()),
+                                    indexPath.toString());
+        } finally {
+            channel.close();
+        }
+    }
+
+    // build
+    // Preconditions:
+    //     - latticeDirectory holds the lattice files (*.lattice) to index
+    //     - lmScale and acousticScale weight the scores, as in
+    //       Lattice.computePosteriors
+    //     - minPosterior is the smallest posterior worth indexing
+    // Post-conditions
+    //     - Same as build with a Failures, except that the files that could
+    //       not be loaded are returned, in file name order
+    public static List<Path> build(Path latticeDirectory, Path indexPath, double lmScale, double acousticScale,
+                                   double minPosterior) throws IOException {
+        final List<Path> skipped = new ArrayList<Path>();
+        build(latticeDirectory, indexPath, lmScale, acousticScale, minPosterior, new Failures() {
+            public void failed(Path file, IOException error) {
+                skipped.add(file);
+            }
+        });
+        return skipped;
+    }
+
+    // build
+    // Preconditions:
+    //     - latticeDirectory holds the lattice files (*.lattice) to index
+    //     - lmScale and acousticScale weight the scores, as in
+    //       Lattice.computePosteriors
+    //     - minPosterior is the smallest posterior worth indexing
+    //     - failures is told about every file that cannot be loaded
+    // Post-conditions
+    //     - indexPath holds an index of every non -silence- edge, in every
+    //       lattice that could be loaded, whose posterior is at least
+    //       minPosterior; utterances are numbered in file name order
+    //     - A file that cannot be read or parsed goes to failures.failed, is
+    //       left out of the index (it takes no utterance number), and does
+    //       not stop the build
+    // Notes:
+    //     - Lattices are loaded one at a time, and each word's postings are
+    //       delta encoded as they are added, so the memory needed is about
+    //       the size of the finished index
+    //     - Throws IOException if the directory cannot be listed or the index
+    //       cannot be written
+    public static void build(Path latticeDirectory, Path indexPath, double lmScale, double acousticScale,
+                             double minPosterior, Failures failures) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(latticeDirectory, "*.lattice");
+        try {
+            for( Path file : stream ) {
+                files.add(file);
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(files);
+
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        PostingWriter[] byWord = new PostingWriter[64];
+        String[] utteranceIDs = new String[files.size()];
+        int numUtterances = 0;
+        for( int f=0; f<files.size(); f++ ) {
+            Lattice lattice;
+            try {
+                lattice = new Lattice(files.get(f).toString());
+            } catch( IOException e ) {
+                failures.failed(files.get(f), e);
+                continue;
+            }
+            int u = numUtterances++;
+            utteranceIDs[u] = lattice.getUtteranceID();
+            double[] posteriors = lattice.computePosteriors(lmScale, acousticScale);
+
+            // Sort the kept edges by word, then by time, so each word's
+            // postings arrive in the order they are encoded
+            long[] hits = new long[lattice.getNumEdges()];
+            int numHits = 0;
+            for( int e=0; e<hits.length; e++ ) {
+                if( posteriors[e] >= minPosterior && posteriors[e] > 0
+                        && !vocabulary.isSilence(lattice.getEdgeLabel(e)) ) {
+                    hits[numHits++] = ((long)lattice.getEdgeLabel(e) << 32) | e;
+                }
+            }
+            Arrays.sort(hits, 0, numHits);
+            for( int start=0, end; start<numHits; start=end ) {
+                int word = (int)(hits[start] >>> 32);
+                end = start;
+                while( end < numHits && (int)(hits[end] >>> 32) == word ) {
+                    end++;
+                }
+                long[] times = new long[end - start];
+                for( int k=start; k<end; k++ ) {
+                    int e = (int)hits[k];
+                    double midpoint = (lattice.getNodeTime(lattice.getEdgeTarget(e))
+                                       + lattice.getNodeTime(lattice.getEdgeSource(e))) / 2.0;
+                    times[k - start] = (Math.max(0, Math.round(midpoint * 1000)) << 32) | e;
+                }
+                Arrays.sort(times);
+                if( word >= byWord.length ) {
+                    byWord = Arrays.copyOf(byWord, Math.max(2 * byWord.length, word + 1));
+                }
+                if( byWord[word] == null ) {
+                    byWord[word] = new PostingWriter();
+                }
+                for( int k=0; k<times.length; k++ ) {
+                    byWord[word].add(u, (int)(times[k] >>> 32),
+                                     (int)Math.round(Math.min(1, posteriors[(int)times[k]]) * SCORE_SCALE));
+                }
+            }
+        }
+        write(indexPath, Arrays.copyOf(utteranceIDs, numUtterances), byWord);
+    }
+
+    // write
+    // Preconditions:
+    //     - byWord[id] holds the postings of the word with Vocabulary id id,
+    //       or is null if it has none
+    // Post-conditions
+    //     - The index is written to indexPath in the format described at
+    //       the top of this class
+    private static void write(Path indexPath, String[] utteranceIDs, PostingWriter[] byWord) throws IOException {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        List<String> words = new ArrayList<String>();
+        for( int id=0; id<byWord.length; id++ ) {
+            if( byWord[id] != null ) {
+                words.add(vocabulary.getWord(id));
+            }
+        }
+        Collections.sort(words);
+
+        byte[][] idBytes = new byte[utteranceIDs.length][];
+        int[] idOffsets = new int[utteranceIDs.length + 1];
+        for( int u=0; u<utteranceIDs.length; u++ ) {
+            idBytes[u] = utteranceIDs[u].getBytes(StandardCharsets.UTF_8);
+            idOffsets[u + 1] = idOffsets[u] + idBytes[u].length;
+        }
+        byte[][] wordBytes = new byte[words.size()][];
+        PostingWriter[] postings = new PostingWriter[words.size()];
+        int[] wordOffsets = new int[words.size() + 1];
+        int[] postingCounts = new int[words.size()];
+        long[] postingOffsets = new long[words.size() + 1];
+        for( int w=0; w<words.size(); w++ ) {
+            wordBytes[w] = words.get(w).getBytes(StandardCharsets.UTF_8);
+            wordOffsets[w + 1] = wordOffsets[w] + wordBytes[w].length;
+            postings[w] = byWord[vocabulary.lookup(words.get(w))];
+            postingCounts[w] = postings[w].count;
+            postingOffsets[w + 1] = postingOffsets[w] + postings[w].size;
+        }
+
+        long postingsAt = align8(align8(align8(align8(HEADER_BYTES + 4L * idOffsets.length) + idOffsets[utteranceIDs.length])
+                                        + 4L * wordOffsets.length + 4L * postingCounts.length)
+                                 + 8L * postingOffsets.length + wordOffsets[words.size()]);
+        if( postingsAt + postingOffsets[words.size()] > Integer.MAX_VALUE ) {
+            throw new IOException("Keyword index for " + utteranceIDs.length + " utterances is too large to map");
+        }
+
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 0;
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(utteranceIDs.length).putInt(words.size())
+                  .putLong(postingOffsets[words.size()]);
+            position += HEADER_BYTES;
+            for( int i=0; i<idOffsets.length; i++ ) {
+                position = putInt(channel, buffer, position, idOffsets[i]);
+            }
+            position = pad(channel, buffer, position);
+            for( int u=0; u<idBytes.length; u++ ) {
+                position = putBytes(channel, buffer, position, idBytes[u], idBytes[u].length);
+            }
+            position = pad(channel, buffer, position);
+            for( int i=0; i<wordOffsets.length; i++ ) {
+                position = putInt(channel, buffer, position, wordOffsets[i]);
+            }
+            for( int i=0; i<postingCounts.length; i++ ) {
+                position = putInt(channel, buffer, position, postingCounts[i]);
+            }
+            position = pad(channel, buffer, position);
+            for( int i=0; i<postingOffsets.length; i++ ) {
+                if( buffer.remaining() < 8 ) {
+                    flush(channel, buffer);
+                }
+                buffer.putLong(postingOffsets[i]);
+                position += 8;
+            }
+            for( int w=0; w<wordBytes.length; w++ ) {
+                position = putBytes(channel, buffer, position, wordBytes[w], wordBytes[w].length);
+            }
+            position = pad(channel, buffer, position);
+            for( int w=0; w<postings.length; w++ ) {
+                position = putBytes(channel, buffer, position, postings[w].data, postings[w].size);
+            }
+            flush(channel, buffer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // putInt / putBytes / pad / flush - buffered sequential writes to channel;
+    // each returns the file position after the write
+    private static long putInt(FileChannel channel, ByteBuffer buffer, long position, int value) throws IOException {
+        if( buffer.remaining() < 4 ) {
+            flush(channel, buffer);
+        }
+        buffer.putInt(value);
+        return position + 4;
+    }
+
+    private static long putBytes(FileChannel channel, ByteBuffer buffer, long position, byte[] bytes, int length)
+            throws IOException {
+        for( int offset=0; offset<length; ) {
+            if( !buffer.hasRemaining() ) {
+                flush(channel, buffer);
+            }
+            int chunk = Math.min(buffer.remaining(), length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+        return position + length;
+    }
+
+    private static long pad(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long padded = align8(position);
+        return putBytes(channel, buffer, position, new byte[8], (int)(padded - position));
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while( buffer.hasRemaining() ) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // align8
+    // Preconditions:
+    //     - position is a non-negative byte offset
+    // Post-conditions
+    //     - Returns position rounded up to a multiple of 8
+    private static int align8(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static long align8(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    // PostingWriter - the growing, delta-encoded postings of one word
+    private static final class PostingWriter {
+        byte[] data = new byte[16];
+        int size, count;
+        int lastUtterance = -1, lastTime;
+
+        // add - append a posting; postings arrive ordered by utterance, time
+        void add(int utterance, int timeMs, int score) {
+            if( size + 15 > data.length ) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            putVarint(utterance - lastUtterance);
+            putVarint(utterance == lastUtterance ? timeMs - lastTime : timeMs);
+            putVarint(score);
+            lastUtterance = utterance;
+            lastTime = timeMs;
+            count++;
+        }
+
+        private void putVarint(int value) {
+            while( (value & ~0x7F) != 0 ) {
+                data[size++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte)value;
+        }
+    }
+
+    // Accessors
+
+    // getNumUtterances
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of lattices that were indexed
+    public int getNumUtterances() {
+        return this.numUtterances;
+    }
+
+    // getNumWords
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of distinct words with at least one posting
+    public int getNumWords() {
+        return this.numWords;
+    }
+
+    // countHits
+    // Preconditions:
+    //     - word is the word (or multiword) to look up
+    // Post-conditions
+    //     - Returns the number of postings for word, without decoding them
+    public int countHits(String word) {
+        int w = findWord(word);
+        return w < 0 ? 0 : this.buffer.getInt(this.postingCountsAt + 4 * w);
+    }
+
+    // search
+    // Preconditions:
+    //     - word is the word (or multiword) to look up
+    // Post-conditions
+    //     - Returns every posting for word, ordered by utterance (in the
+    //       order the lattice files were indexed) and then by time; empty if
+    //       the word was never indexed
+    // Notes:
+    //     - The word is found by binary search over the sorted word table,
+    //       and only its postings are read from the mapped file
+    public List<Hit> search(String word) {
+        int w = findWord(word);
+        if( w < 0 ) {
+            return Collections.emptyList();
+        }
+        int count = this.buffer.getInt(this.postingCountsAt + 4 * w);
+        int position = (int)(this.postingsAt + this.buffer.getLong(this.postingOffsetsAt + 8 * w));
+        List<Hit> hits = new ArrayList<Hit>(count);
+        int utterance = -1, time = 0;
+        String utteranceID = null;
+        int[] value = new int[1];
+        for( int i=0; i<count; i++ ) {
+            position = getVarint(position, value);
+            if( value[0] != 0 ) {
+                utterance += value[0];
+                utteranceID = utteranceID(utterance);
+                time = 0;
+            }
+            position = getVarint(position, value);
+            time += value[0];
+            position = getVarint(position, value);
+            hits.add(new Hit(utteranceID, time / 1000.0, value[0] / SCORE_SCALE));
+        }
+        return hits;
+    }
+
+    // findWord
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the position of word in the word table, or -1
+    private int findWord(String word) {
+        int low = 0, high = this.numWords - 1;
+        while( low <= high ) {
+            int middle = (low + high) >>> 1;
+            int comparison = wordAt(middle).compareTo(word);
+            if( comparison < 0 ) {
+                low = middle + 1;
+            } else if( comparison > 0 ) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // wordAt / utteranceID - decode entry i of the word or utterance table
+    private String wordAt(int i) {
+        return string(this.wordOffsetsAt, this.wordBytesAt, i);
+    }
+
+    private String utteranceID(int i) {
+        return string(this.idOffsetsAt, this.idBytesAt, i);
+    }
+
+    private String string(int offsetsAt, int bytesAt, int i) {
+        int start = this.buffer.getInt(offsetsAt + 4 * i);
+        byte[] bytes = new byte[this.buffer.getInt(offsetsAt + 4 * i + 4) - start];
+        this.buffer.get(bytesAt + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // getVarint - read the unsigned varint at position into value[0] and
+    // return the position after it
+    private int getVarint(int position, int[] value) {
+        int result = 0;
+        for( int shift=0; ; shift+=7 ) {
+            byte b = this.buffer.get(position++);
+            result |= (b & 0x7F) << shift;
+            if( b >= 0 ) {
+                value[0] = result;
+                return position;
+            }
+        }
+    }
+}
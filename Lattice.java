@@ -15,28 +15,70 @@ import java.io.File;
 import java.util.List;
 import java.util.Stack;
 import java.util.Arrays;
-import java.util.Scanner;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.io.PrintWriter;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.LinkedList;
 import java.util.ArrayDeque;
 import java.util.Collections;
 import java.text.NumberFormat;
 import java.util.PriorityQueue;
-import java.io.FileNotFoundException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.BufferUnderflowException;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
 
 public class Lattice {
     private String utteranceID;       // A unique ID for the sentence
     private int startIdx, endIdx;     // Indices of the special start and end tokens
     private int numNodes, numEdges;   // The number of nodes and edges, respectively
-    private Edge[][] adjMatrix;       // Adjacency matrix representing the lattice
-                                      //   Two dimensional array of Edge objects
-                                      //   adjMatrix[i][j] == null means no edge (i,j)
+    private int[] edgeOffsets;        // Compressed sparse row (CSR) edge store:
+                                      //   the edges leaving node i have the edge ids
+                                      //   edgeOffsets[i] .. edgeOffsets[i+1]-1,
+                                      //   sorted ascending by end node
+    private int[] edgeSources;        //   edgeSources[e] is the start node of edge e
+    private int[] edgeTargets;        //   edgeTargets[e] is the end node of edge e
+    private int[] edgeAmScores;       //   edgeAmScores[e] is the acoustic model score
+    private int[] edgeLmScores;       //   edgeLmScores[e] is the language model score
+    private int[] edgeLabels;         //   edgeLabels[e] is the Vocabulary id of the word
     private double[] nodeTimes;       // Stores the timestamp for each node
-    private int[] inDegrees;
+    private int[] inEdgeOffsets;      // Reverse (incoming-edge) index: the edges entering
+    private int[] inEdges;            //   node j are inEdges[inEdgeOffsets[j]] ..
+                                      //   inEdges[inEdgeOffsets[j+1]-1], ascending by
+                                      //   start node
+    private int[] topologicalOrder;   // The nodes reachable from startIdx in
+                                      //   topological order, computed on load
+    private volatile IntervalIndex intervalIndex;  // Edge time spans, built by
+                                                   //   intervalIndex() when first
+                                                   //   queried
+    private volatile WordHits wordHits;   // Hit times for each word, built by
+                                          //   wordHits() when first queried
+    
+    // Binary lattice format (see saveAsBinaryFile), all values little-endian:
+    //   header     int magic, int version, int startIdx, int endIdx,
+    //              int numNodes, int numEdges, int numLabels, int idLength,
+    //              idLength bytes of UTF-8 utterance ID, zero padded to a
+    //              multiple of 8 bytes
+    //   nodes      double nodeTimes[numNodes]
+    //   edges      int edgeOffsets[numNodes+1], then int[numEdges] each of
+    //              edgeTargets, edgeAmScores, edgeLmScores and edgeLabels
+    //   labels     int labelOffsets[numLabels+1] (byte offsets), followed by
+    //              the UTF-8 bytes of all labels back to back; edgeLabels
+    //              index this table, which is local to the file, and are
+    //              mapped to global Vocabulary ids when the file is opened
+    private static final int BINARY_MAGIC = 0x54414C53;   // "SLAT"
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_HEADER_BYTES = 32;
+    
+    private static final Vocabulary VOCABULARY = Vocabulary.getGlobal();
     
     
 
@@ -52,76 +94,264 @@ public class Lattice {
     //     - Field endIdx contains the node number for the end node
     //     - Field numNodes contains the number of nodes in the lattice
     //     - Field numEdges contains the number of edges in the lattice
-    //     - Field adjMatrix encodes the edges in the lattice:
-    //        If an edge exists from node i to node j, adjMatrix[i][j] contains
-    //        the address of an Edge object, which itself contains
-    //           1) The edge's label (word)
+    //     - Fields edgeOffsets, edgeSources, edgeTargets, edgeAmScores,
+    //       edgeLmScores and edgeLabels encode the edges in the lattice:
+    //        The edges leaving node i are numbered edgeOffsets[i] through
+    //        edgeOffsets[i+1]-1, ascending by end node, and edge e stores
+    //           1) The edge's label (word), as a global Vocabulary id
     //           2) The edge's acoustic model score (amScore)
     //           3) The edge's language model score (lmScore)
-    //        If no edge exists from node i to node j, adjMatrix[i][j] == null
+    //        The lattice is a multigraph: several edges (competing words) may
+    //        join the same pair of nodes, and all of them are kept, in the
+    //        order they appear in the file
     //     - Field nodeTimes is allocated and populated with the timestamps for each node
     // Notes:
-    //     - If you encounter a FileNotFoundException, print to standard error
-    //         "Error: Unable to open file " + latticeFilename
-    //       and exit with status (return code) 1
-    //     - If you encounter a NoSuchElementException, print to standard error
-    //         "Error: Not able to parse file " + latticeFilename
-    //       and exit with status (return code) 2
-    public Lattice(String latticeFilename) {
-                
-        Scanner inFile;
-        File latticeFile = new File(latticeFilename);
-
-         try{
-             inFile = new Scanner (new File (latticeFilename));            
-             getMatrix(inFile);
-             
-                                                          
-         }catch(FileNotFoundException e){
-             System.out.println("Error: 1 " + latticeFilename + " not found.");
-             System.exit(1);
-         }
-        return;
+    //     - Throws java.nio.file.NoSuchFileException (an IOException) if the
+    //       file does not exist, and other IOExceptions if it cannot be read
+    //     - Throws LatticeFormatException listing every problem in the file
+    //       if it is not a valid lattice, or LatticeCycleException if the
+    //       graph it describes has a cycle
+    public Lattice(String latticeFilename) throws IOException {
+        LatticeParser parser = new LatticeParser(latticeFilename);
+        parser.parse();
+        
+        this.utteranceID = parser.utteranceID;
+        this.startIdx = parser.startIdx;
+        this.endIdx = parser.endIdx;
+        this.numNodes = parser.numNodes;
+        this.nodeTimes = parser.nodeTimes;
+        buildEdgeStore(parser.from, parser.to, parser.label, parser.am, parser.lm, parser.edgeCount);
+        this.topologicalOrder = computeTopologicalOrder(latticeFilename);
+    }
+    
+    // validate
+    // Preconditions:
+    //     - latticeFilename is the path of a lattice file
+    // Post-conditions
+    //     - Returns every problem that would stop the file from loading as a
+    //       Lattice, one description per entry (most prefixed by the line
+    //       number), or an empty list if the file is a valid lattice
+    // Notes:
+    //     - Throws IOException only if the file itself cannot be read
+    public static List<String> validate(String latticeFilename) throws IOException {
+        try{
+            new Lattice(latticeFilename);
+        }catch(LatticeFormatException e){
+            return e.getProblems();
+        }
+        return Collections.emptyList();
+    }
+    
+    // Lattice - the empty lattice, filled in by openMapped
+    private Lattice() {
     }
     
+    // openMapped
+    // Preconditions:
+    //     - latticePath is the path of a file written by saveAsBinaryFile
+    // Post-conditions
+    //     - Returns the lattice stored in the file
+    // Notes:
+    //     - The file is memory-mapped and each section is moved into the
+    //       lattice's arrays with a single bulk transfer, so nothing is parsed
+    //       or tokenized; only the reverse index is rebuilt, in O(V + E)
+    //     - Throws IOException if the file cannot be read, and
+    //       LatticeFormatException if it is not a lattice in a supported
+    //       version of the binary format, or LatticeCycleException if the
+    //       graph it describes has a cycle
+    public static Lattice openMapped(Path latticePath) throws IOException {
+        FileChannel channel = FileChannel.open(latticePath, StandardOpenOption.READ);
+        MappedByteBuffer buffer;
+        try{
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }finally{
+            channel.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
         
-    private void getMatrix(Scanner input){
-        String data [];
+        if(buffer.remaining() < BINARY_HEADER_BYTES || buffer.getInt() != BINARY_MAGIC)
+            throw new LatticeFormatException(latticePath.toString(), "not a binary lattice file");
+        int version = buffer.getInt();
+        if(version != BINARY_VERSION)
+            throw new LatticeFormatException(latticePath.toString(), "unsupported binary lattice version " + version);
         
-        for(int i =0; i < 5; i++){
-            data = input.nextLine().split(" ");
-            if(data[0].equals("id"))
-                this.utteranceID = data[1];
-            if(data[0].equals("start"))
-                this.startIdx = Integer.parseInt(data[1]);
-            if(data[0].equals("end"))
-                this.endIdx = Integer.parseInt(data[1]);                
-            if(data[0].equals("numNodes"))
-                this.numNodes = Integer.parseInt(data[1]);
-            if(data[0].equals("numEdges"))
-                this.numEdges = Integer.parseInt(data[1]);                
+        Lattice lattice = new Lattice();
+        int wordIds [];
+        try{
+            lattice.startIdx = buffer.getInt();
+            lattice.endIdx = buffer.getInt();
+            lattice.numNodes = buffer.getInt();
+            lattice.numEdges = buffer.getInt();
+            int numLabels = buffer.getInt();
+            int idLength = buffer.getInt();
+            //sizes are checked in long arithmetic, so huge values from a
+            //corrupt header cannot wrap around and pass
+            if(lattice.numNodes < 0 || lattice.numEdges < 0 || numLabels < 0 || idLength < 0
+                    || idLength > buffer.capacity()
+                    || align8(BINARY_HEADER_BYTES + (long)idLength) + 8L * lattice.numNodes + 4L * (lattice.numNodes + 1L)
+                       + 16L * lattice.numEdges + 4L * (numLabels + 1L) > buffer.capacity())
+                throw new LatticeFormatException(latticePath.toString(), "truncated or corrupt binary lattice file");
+            
+            byte idBytes [] = new byte [idLength];
+            buffer.get(idBytes);
+            lattice.utteranceID = new String(idBytes, StandardCharsets.UTF_8);
+            buffer.position(align8(buffer.position()));
+            
+            lattice.nodeTimes = new double [lattice.numNodes];
+            buffer.asDoubleBuffer().get(lattice.nodeTimes);
+            buffer.position(buffer.position() + 8 * lattice.numNodes);
+            
+            IntBuffer ints = buffer.asIntBuffer();
+            lattice.edgeOffsets = new int [lattice.numNodes + 1];
+            lattice.edgeTargets = new int [lattice.numEdges];
+            lattice.edgeAmScores = new int [lattice.numEdges];
+            lattice.edgeLmScores = new int [lattice.numEdges];
+            lattice.edgeLabels = new int [lattice.numEdges];
+            int labelOffsets [] = new int [numLabels + 1];
+            ints.get(lattice.edgeOffsets);
+            ints.get(lattice.edgeTargets);
+            ints.get(lattice.edgeAmScores);
+            ints.get(lattice.edgeLmScores);
+            ints.get(lattice.edgeLabels);
+            ints.get(labelOffsets);
+            buffer.position(buffer.position() + 4 * ints.position());
+            if(labelOffsets[numLabels] < 0 || labelOffsets[numLabels] > buffer.remaining())
+                throw new LatticeFormatException(latticePath.toString(), "truncated or corrupt binary lattice file");
+            
+            byte labelBytes [] = new byte [labelOffsets[numLabels]];
+            buffer.get(labelBytes);
+            wordIds = new int [numLabels];
+            for(int i=0; i< numLabels; i++)
+                wordIds[i] = VOCABULARY.intern(new String(labelBytes, labelOffsets[i], labelOffsets[i+1] - labelOffsets[i], StandardCharsets.UTF_8));
+        }catch(BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException | IndexOutOfBoundsException e){
+            throw new LatticeFormatException(latticePath.toString(), "truncated or corrupt binary lattice file", e);
         }
         
-        this.adjMatrix = new Edge [this.numNodes][this.numNodes];
-        this.nodeTimes = new double [this.numNodes];
-        this.inDegrees = new int [this.numNodes];
+        if(lattice.edgeOffsets[0] != 0 || lattice.edgeOffsets[lattice.numNodes] != lattice.numEdges)
+            throw new LatticeFormatException(latticePath.toString(), "inconsistent edge offsets");
+        lattice.edgeSources = new int [lattice.numEdges];
+        for(int n=0; n< lattice.numNodes; n++){
+            if(lattice.edgeOffsets[n+1] < lattice.edgeOffsets[n])
+                throw new LatticeFormatException(latticePath.toString(), "inconsistent edge offsets");
+            for(int e = lattice.edgeOffsets[n]; e< lattice.edgeOffsets[n+1]; e++)
+                lattice.edgeSources[e] = n;
+        }
+        for(int e=0; e< lattice.numEdges; e++){
+            if(lattice.edgeTargets[e] < 0 || lattice.edgeTargets[e] >= lattice.numNodes
+                    || lattice.edgeLabels[e] < 0 || lattice.edgeLabels[e] >= wordIds.length)
+                throw new LatticeFormatException(latticePath.toString(), "edge " + e + " has an out-of-range node or label");
+            lattice.edgeLabels[e] = wordIds[lattice.edgeLabels[e]];
+        }
+        if(lattice.startIdx < 0 || lattice.startIdx >= lattice.numNodes || lattice.endIdx < 0 || lattice.endIdx >= lattice.numNodes)
+            throw new LatticeFormatException(latticePath.toString(), "start or end node out of range");
+        lattice.buildReverseIndex();
+        lattice.topologicalOrder = lattice.computeTopologicalOrder(latticePath.toString());
+        return lattice;
+    }
+    
+    // align8
+    // Pre-conditions:
+    //    - position is a non-negative byte offset
+    // Post-conditions:
+    //    - Returns position rounded up to a multiple of 8
+    private static int align8(int position){
+        return (position + 7) & ~7;
+    }
+    
+    // align8 - the same for a long position, such as a size being checked
+    private static long align8(long position){
+        return (position + 7) & ~7L;
+    }
+    
+    // buildEdgeStore
+    // Pre-conditions:
+    //    - this.numNodes and this.nodeTimes are set
+    //    - Entries 0..count-1 of from, to, label, am and lm describe the edges
+    //      in the order they were read; label holds Vocabulary ids
+    // Post-conditions:
+    //    - The CSR edge fields and the reverse index are populated, with edges
+    //      sorted by start node and then by end node
+    //    - Parallel edges (same start and end node) are all kept, in the order
+    //      they were read, and this.numEdges is set to the number of edges
+    // Notes:
+    //    - Two stable counting sorts (by end node, then by start node) order
+    //      the edges in O(V + E) time, without ever allocating V^2 cells
+    private void buildEdgeStore(int from[], int to[], int label[], int am[], int lm[], int count){
+        int byTarget [] = new int [count];
+        int order [] = new int [count];
+        int bucket [] = new int [this.numNodes + 1];
         
-        for(int n =0; n< this.numNodes ; n++){
-             data = input.nextLine().split(" ");
-            this.nodeTimes[Integer.parseInt(data[1])] = Double.parseDouble(data[2]); 
+        for(int e=0; e< count; e++)
+            bucket[to[e] + 1]++;
+        for(int n=0; n< this.numNodes; n++)
+            bucket[n + 1] += bucket[n];
+        for(int e=0; e< count; e++)
+            byTarget[bucket[to[e]]++] = e;
+        
+        bucket = new int [this.numNodes + 1];
+        for(int e=0; e< count; e++)
+            bucket[from[e] + 1]++;
+        for(int n=0; n< this.numNodes; n++)
+            bucket[n + 1] += bucket[n];
+        for(int k=0; k< count; k++){
+            int e = byTarget[k];
+            order[bucket[from[e]]++] = e;
         }
         
-        while(input.hasNextLine()){
-            data = input.nextLine().split(" ");            
-            this.adjMatrix[Integer.parseInt(data[1])][Integer.parseInt(data[2])] 
-                = new Edge(data[3], Integer.parseInt(data[4]), Integer.parseInt(data[5]));
-            
-            this.inDegrees[Integer.parseInt(data[2])]++;
+        this.numEdges = count;
+        this.edgeOffsets = new int [this.numNodes + 1];
+        this.edgeSources = new int [count];
+        this.edgeTargets = new int [count];
+        this.edgeAmScores = new int [count];
+        this.edgeLmScores = new int [count];
+        this.edgeLabels = new int [count];
+        
+        for(int k=0; k< count; k++){
+            int e = order[k];
+            this.edgeSources[k] = from[e];
+            this.edgeTargets[k] = to[e];
+            this.edgeAmScores[k] = am[e];
+            this.edgeLmScores[k] = lm[e];
+            this.edgeLabels[k] = label[e];
+            this.edgeOffsets[from[e] + 1]++;
         }
-             
-        input.close();
+        for(int n=0; n< this.numNodes; n++)
+            this.edgeOffsets[n + 1] += this.edgeOffsets[n];
+        
+        buildReverseIndex();
     }
     
+    // buildReverseIndex
+    // Pre-conditions:
+    //    - this.edgeOffsets, this.edgeSources and this.edgeTargets are populated
+    // Post-conditions:
+    //    - this.inEdgeOffsets and this.inEdges list the edges entering each node,
+    //      ascending by start node
+    private void buildReverseIndex(){
+        this.inEdgeOffsets = new int [this.numNodes + 1];
+        this.inEdges = new int [this.numEdges];
+        
+        for(int e=0; e< this.numEdges; e++)
+            this.inEdgeOffsets[this.edgeTargets[e] + 1]++;
+        for(int n=0; n< this.numNodes; n++)
+            this.inEdgeOffsets[n + 1] += this.inEdgeOffsets[n];
+        
+        //edge ids ascend by start node, so filling each node's incoming
+        //list in edge id order keeps the lists sorted by start node
+        int next [] = Arrays.copyOf(this.inEdgeOffsets, this.numNodes);
+        for(int e=0; e< this.numEdges; e++)
+            this.inEdges[next[this.edgeTargets[e]]++] = e;
+    }
+    
+    // combinedScore
+    // Pre-conditions:
+    //    - e is a valid edge id and lmScale specifies how much to weight the lmScore
+    // Post-conditions:
+    //    - Returns amScore + lmScale * lmScore for edge e, truncated exactly
+    //      as Edge.getCombinedScore does
+    private int combinedScore(int e, double lmScale){
+        return this.edgeAmScores[e] + (int)(lmScale * this.edgeLmScores[e]);
+    }
         
     
     // Accessors 
@@ -153,6 +383,42 @@ public class Lattice {
         return this.numEdges;
     }
 
+    // getEdgeSource
+    // Pre-conditions:
+    //    - e is an edge id, 0 <= e < numEdges
+    // Post-conditions:
+    //    - Returns the start node of edge e
+    int getEdgeSource(int e) {
+        return this.edgeSources[e];
+    }
+
+    // getEdgeTarget
+    // Pre-conditions:
+    //    - e is an edge id, 0 <= e < numEdges
+    // Post-conditions:
+    //    - Returns the end node of edge e
+    int getEdgeTarget(int e) {
+        return this.edgeTargets[e];
+    }
+
+    // getEdgeLabel
+    // Pre-conditions:
+    //    - e is an edge id, 0 <= e < numEdges
+    // Post-conditions:
+    //    - Returns the global Vocabulary id of the word on edge e
+    int getEdgeLabel(int e) {
+        return this.edgeLabels[e];
+    }
+
+    // getNodeTime
+    // Pre-conditions:
+    //    - n is a node index, 0 <= n < numNodes
+    // Post-conditions:
+    //    - Returns the timestamp of node n, in seconds
+    double getNodeTime(int n) {
+        return this.nodeTimes[n];
+    }
+
     // toString
     // Pre-conditions:
     //    - None
@@ -160,38 +426,54 @@ public class Lattice {
     //    - Constructs and returns a string describing the lattice in the same
     //      format as the input files.  Nodes should be sorted ascending by node 
     //      index, edges should be sorted primarily by start node index, and 
-    //      secondarily by end node index 
+    //      secondarily by end node index (parallel edges keep their file order)
     // Notes:
     //    - Do not store the input string verbatim: reconstruct it on they fly
     //      from the class's fields
     //    - toString simply returns a string, it should not print anything itself
-    // Hints:
-    //    - You can use the String.format method to print a floating point value 
-    //      to two decimal places
-    //    - A StringBuilder is asymptotically more efficient for accumulating a
-    //      String than repeated concatenation
+    //    - The StringBuilder is presized from the lattice's dimensions and
+    //      filled by appendTo, so it rarely has to grow
     public String toString() {
-        
-        String timeString = "";
-        StringBuilder sBuilder = new StringBuilder();
-        
-        sBuilder.append("id " + this.utteranceID +" start " + this.startIdx +" end "+ endIdx + " numNodes " + this.numNodes 
-                + " numEdges " + this.numEdges + " ");
-    
-        
-        for(int i= 0; i< this.numNodes; i++)
-            sBuilder.append("node " + i + " "+ timeString.format("%.2f", (double)this.nodeTimes[i]) + " ");        
-        
-        for(int i= 0; i< this.numNodes; i++){
-            for(int j=0; j< this.numNodes; j++)
-                if(this.adjMatrix[i][j] != null){
-                    sBuilder.append("edge " +i + " " + j+" " +this.adjMatrix[i][j].getLabel() + " " + 
-                    this.adjMatrix[i][j].getAmScore() + " " +this.adjMatrix[i][j].getLmScore() + " ");
-                }
+        StringBuilder sBuilder = new StringBuilder(textLengthEstimate());
+        try{
+            appendTo(sBuilder);
+        }catch(IOException e){
+            throw new AssertionError(e);    //a StringBuilder does not throw
         }
         return sBuilder.toString();
     }
 
+    // appendTo
+    // Pre-conditions:
+    //    - out is where the text goes (a StringBuilder, Writer, PrintStream...)
+    // Post-conditions:
+    //    - Appends exactly the text of toString() to out, without building it
+    //      as a String first
+    // Notes:
+    //    - Times and scores are formatted straight into a small char buffer
+    //      (see TextSink), so apart from that buffer nothing is allocated
+    //      per call, node or edge
+    //    - Throws any IOException thrown by out
+    public void appendTo(Appendable out) throws IOException {
+        TextSink text = new TextSink(out, textLengthEstimate());
+        writeText(text, ' ');
+        text.flush();
+    }
+
+    // textLengthEstimate
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns a rough, usually generous, guess at the length of
+    //      toString(), for presizing buffers; at most Integer.MAX_VALUE - 8
+    private int textLengthEstimate() {
+        long nodeDigits = Long.toString(this.numNodes).length();
+        long estimate = 64 + this.utteranceID.length()
+                        + this.numNodes * (14 + nodeDigits)    // "node " i " " 0.00 " "
+                        + this.numEdges * (32 + 2 * nodeDigits);   // "edge " s " " t " " w " " am " " lm " "
+        return (int)Math.min(estimate, Integer.MAX_VALUE - 8);
+    }
+
     // decode
     // Pre-conditions:
     //    - lmScale specifies how much lmScore should be weighted
@@ -206,79 +488,666 @@ public class Lattice {
     //      Backtracking will give you words in reverse order.
     //    - java.lang.Double.POSITIVE_INFINITY represents positive infinity
     // Notes:
-    //    - It is okay if this algorithm has time complexity O(V^2)
+    //    - Runs in O(V + E): each node reads only its own incoming edges
+    //      from the reverse index
+    //    - Where parallel edges join the same two nodes, the cheapest one wins
     public Hypothesis decode(double lmScale) {                
-        double posInfinity = java.lang.Double.POSITIVE_INFINITY;
-        double costs[] = new double [this.numNodes];        
-        int predecessor [] = new int [this.numNodes];
-        Hypothesis p = new Hypothesis();
-        double edgeWeight =0.0;                
-        int n=0;
+        return decodeBatch(new double[] { lmScale })[0];
+    }
+
+    // decodeBatch
+    // Pre-conditions:
+    //    - lmScales holds the lmScale values to decode with
+    // Post-conditions:
+    //    - A new array is returned whose i'th element is the Hypothesis that
+    //      decode(lmScales[i]) returns
+    // Notes:
+    //    - All scales share one pass over the topological order: each node
+    //      keeps a row of costs, one per scale (costs[node * numScales + s]),
+    //      and each incoming edge relaxes the whole row in a tight loop over
+    //      consecutive doubles that the JIT can unroll and vectorize
+    public Hypothesis[] decodeBatch(double lmScales[]) {
+        int numScales = lmScales.length;
+        int predecessor [] = bestPredecessors(lmScales);
+        Hypothesis result [] = new Hypothesis [numScales];
         
-        for(int i= 0; i < this.numNodes; i++){
-            costs[i] = posInfinity;        
-            predecessor[i]=-1;
+        for(int s =0; s < numScales; s++){
+            int t [] =  BackTrack(predecessor, numScales, s);            
+            result[s] = new Hypothesis();
+            for(int k =0; k < t.length; k++)
+                result[s].addWord(this.edgeLabels[t[k]], combinedScore(t[k], lmScales[s]));
         }
+        return result;
+    }
+    
+    // bestPath
+    // Pre-conditions:
+    //    - lmScale specifies how much to weight the lmScore, as in decode
+    // Post-conditions:
+    //    - Returns the ids of the edges on the path decode(lmScale) takes,
+    //      from startIdx to endIdx, or an empty array if there is none
+    int[] bestPath(double lmScale) {
+        return BackTrack(bestPredecessors(new double[] { lmScale }), 1, 0);
+    }
+    
+    // bestPredecessors
+    // Pre-conditions:
+    //    - lmScales holds the lmScale values to decode with
+    // Post-conditions:
+    //    - Returns p, where p[node * lmScales.length + s] is the last edge of
+    //      the best path from startIdx to node under lmScales[s], or -1 if
+    //      there is none; see decodeBatch for the layout
+    private int[] bestPredecessors(double lmScales[]) {
+        int numScales = lmScales.length;
+        double posInfinity = java.lang.Double.POSITIVE_INFINITY;
+        double costs[] = new double [this.numNodes * numScales];        
+        int predecessor [] = new int [this.numNodes * numScales];
+        int n=0;
         
-        predecessor[this.startIdx]=0;
-        costs[this.startIdx] = 0.0;
+        Arrays.fill(costs, posInfinity);
+        Arrays.fill(predecessor, -1);
+        Arrays.fill(costs, this.startIdx * numScales, (this.startIdx + 1) * numScales, 0.0);
         
-        int topSortNodes [] = topologicalSort();
+        int topSortNodes [] = topologicalOrder();
         int topSortNodesLength = topSortNodes.length;
         
         //for each vertex n in topSortNodes
         for(int j =0; j < topSortNodesLength; j++){
             n = topSortNodes[j];
-            //for each vetrex i that n is adjacent to 
-            for(int i =0; i < this.numNodes; i++){
-                if(this.adjMatrix[i][n] != null){
-                        edgeWeight = this.adjMatrix[i][n].getCombinedScore(lmScale);
-                        if( ( edgeWeight + costs[i]) <= costs[n]){                   
-                            costs[n] = edgeWeight + costs[i];                    
-                            predecessor[n]=i;
-                        }
+            int to = n * numScales;
+            //for each edge e entering n
+            for(int k = this.inEdgeOffsets[n]; k < this.inEdgeOffsets[n+1]; k++){
+                int e = this.inEdges[k];
+                int from = this.edgeSources[e] * numScales;
+                int am = this.edgeAmScores[e], lm = this.edgeLmScores[e];
+                for(int s =0; s < numScales; s++){
+                    double cost = costs[from + s] + (am + (int)(lmScales[s] * lm));
+                    if( cost <= costs[to + s]){                   
+                        costs[to + s] = cost;                    
+                        predecessor[to + s]=e;
+                    }
+                }
+            }
+        }
+        return predecessor;
+    }
+
+    // decodeNBest
+    // Pre-conditions:
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    //    - n is the number of hypotheses wanted
+    // Post-conditions:
+    //    - Returns a new List of up to n Hypothesis objects for the n lowest-cost
+    //      distinct paths from startIdx to endIdx, best first
+    //    - Fewer than n are returned if the lattice has fewer paths
+    // Notes:
+    //    - The first hypothesis has the same score as decode's (if several paths
+    //      tie, it may be a different one of them)
+    //    - Paths are distinct as edge sequences; two paths through different
+    //      parallel edges or silences may still produce the same words
+    //    - Uses Eppstein's k-shortest-paths algorithm.  One backward pass over
+    //      the topological order gives every node's best path to endIdx; any
+    //      other path is that best path plus a few "sidetrack" edges, each
+    //      costing delta = weight + (best from its end) - (best from its start).
+    //      Persistent heaps of sidetracks, shared along the best-path tree, are
+    //      built in O(E log V); after that each further path costs O(log n) to
+    //      find, plus the time to write out its words
+    public java.util.List<Hypothesis> decodeNBest(double lmScale, int n) {
+        List<Hypothesis> result = new ArrayList<Hypothesis>();
+        double posInfinity = java.lang.Double.POSITIVE_INFINITY;
+        double toEnd [] = new double [this.numNodes];
+        int bestEdge [] = new int [this.numNodes];
+        Arrays.fill(toEnd, posInfinity);
+        Arrays.fill(bestEdge, -1);
+        toEnd[this.endIdx] = 0.0;
+        
+        int topSortNodes [] = topologicalOrder();
+        for(int j= topSortNodes.length-1; j>= 0; j--){
+            int u = topSortNodes[j];
+            if(u == this.endIdx)
+                continue;
+            for(int e = this.edgeOffsets[u]; e < this.edgeOffsets[u+1]; e++){
+                double cost = combinedScore(e, lmScale) + toEnd[this.edgeTargets[e]];
+                if(cost < toEnd[u]){
+                    toEnd[u] = cost;
+                    bestEdge[u] = e;
+                }
+            }
+        }
+        if(n <= 0 || toEnd[this.startIdx] == posInfinity)
+            return result;
+        
+        //heaps[u] holds the sidetracks leaving every node on u's best path
+        //to endIdx; it shares all but O(log V) nodes with the heap one step on
+        SidetrackHeap heaps [] = new SidetrackHeap [this.numNodes];
+        for(int j= topSortNodes.length-1; j>= 0; j--){
+            int u = topSortNodes[j];
+            if(toEnd[u] == posInfinity)
+                continue;
+            SidetrackHeap heap = (u == this.endIdx) ? null : heaps[this.edgeTargets[bestEdge[u]]];
+            for(int e = this.edgeOffsets[u]; e < this.edgeOffsets[u+1]; e++){
+                if(e != bestEdge[u] && toEnd[this.edgeTargets[e]] != posInfinity){
+                    double delta = combinedScore(e, lmScale) + toEnd[this.edgeTargets[e]] - toEnd[u];
+                    heap = SidetrackHeap.merge(heap, new SidetrackHeap(delta, e, null, null));
                 }
             }
+            heaps[u] = heap;
         }
-        int u, v;
-        int t [] =  BackTrack(predecessor);            
-        for(int i =0; i < t.length-1; i++){
-            u = t[i];
-            v= t[i+1];
-            if(this.adjMatrix[u][v] != null)
-                p.addWord(this.adjMatrix[u][v].getLabel(), this.adjMatrix[u][v].getCombinedScore(lmScale));
+        
+        //each queued path is its prefix's sidetracks plus node.edge; moving to
+        //a child of node swaps the last sidetrack for the next-cheapest one,
+        //and moving to heaps[end of node.edge] appends one more
+        result.add(sidetrackPath(null, bestEdge, lmScale));
+        PriorityQueue<SidetrackPath> queue = new PriorityQueue<SidetrackPath>();
+        if(heaps[this.startIdx] != null)
+            queue.add(new SidetrackPath(toEnd[this.startIdx] + heaps[this.startIdx].delta, heaps[this.startIdx], null));
+        while(result.size() < n && !queue.isEmpty()){
+            SidetrackPath path = queue.poll();
+            result.add(sidetrackPath(path, bestEdge, lmScale));
             
+            SidetrackHeap node = path.node;
+            if(node.left != null)
+                queue.add(new SidetrackPath(path.cost - node.delta + node.left.delta, node.left, path.prefix));
+            if(node.right != null)
+                queue.add(new SidetrackPath(path.cost - node.delta + node.right.delta, node.right, path.prefix));
+            SidetrackHeap next = heaps[this.edgeTargets[node.edge]];
+            if(next != null)
+                queue.add(new SidetrackPath(path.cost + next.delta, next, path));
+        }
+        return result;
+    }
+    
+    // sidetrackPath
+    // Pre-conditions:
+    //    - path is a queued path (null for the best path itself)
+    //    - bestEdge holds each node's first edge on its best path to endIdx
+    // Post-conditions:
+    //    - Returns a new Hypothesis for the full path from startIdx to endIdx:
+    //      best-path edges, leaving them only to take path's sidetracks in order
+    private Hypothesis sidetrackPath(SidetrackPath path, int bestEdge[], double lmScale){
+        Stack<Integer> sidetracks = new Stack<Integer>();
+        for(SidetrackPath p = path; p != null; p = p.prefix)
+            sidetracks.push(p.node.edge);
+        
+        Hypothesis h = new Hypothesis();
+        int node = this.startIdx;
+        while(node != this.endIdx){
+            int e = bestEdge[node];
+            if( !sidetracks.isEmpty() && this.edgeSources[sidetracks.peek()] == node)
+                e = sidetracks.pop();
+            h.addWord(this.edgeLabels[e], combinedScore(e, lmScale));
+            node = this.edgeTargets[e];
+        }
+        return h;
+    }
+    
+    // SidetrackHeap - a persistent leftist min-heap of sidetrack edges, ordered
+    //   by delta, the extra cost of leaving the best path through edge.  Nodes
+    //   are never modified, so merging builds new nodes along one right spine
+    //   and shares everything else with the heaps it came from
+    private static final class SidetrackHeap {
+        final double delta;
+        final int edge;
+        final SidetrackHeap left, right;
+        final int rank;              // Length of the right spine
+        
+        SidetrackHeap(double delta, int edge, SidetrackHeap left, SidetrackHeap right){
+            this.delta = delta;
+            this.edge = edge;
+            this.left = left;
+            this.right = right;
+            this.rank = 1 + (right == null ? 0 : right.rank);
+        }
+        
+        static SidetrackHeap merge(SidetrackHeap a, SidetrackHeap b){
+            if(a == null)
+                return b;
+            if(b == null)
+                return a;
+            if(b.delta < a.delta){
+                SidetrackHeap t = a;
+                a = b;
+                b = t;
+            }
+            SidetrackHeap merged = merge(a.right, b);
+            if(a.left == null || a.left.rank < merged.rank)
+                return new SidetrackHeap(a.delta, a.edge, merged, a.left);
+            return new SidetrackHeap(a.delta, a.edge, a.left, merged);
+        }
+    }
+    
+    // SidetrackPath - a candidate path in decodeNBest: the sidetracks of prefix
+    //   followed by node.edge, with total cost cost
+    private static final class SidetrackPath implements Comparable<SidetrackPath> {
+        final double cost;
+        final SidetrackHeap node;
+        final SidetrackPath prefix;
+        
+        SidetrackPath(double cost, SidetrackHeap node, SidetrackPath prefix){
+            this.cost = cost;
+            this.node = node;
+            this.prefix = prefix;
+        }
+        
+        public int compareTo(SidetrackPath other){
+            return Double.compare(this.cost, other.cost);
+        }
+    }
+
+    // oracleHypothesis
+    // Pre-conditions:
+    //    - referenceFilename is the name of a file with the reference
+    //      transcript, as for Hypothesis.computeWER
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    // Post-conditions:
+    //    - Returns a new Hypothesis for the path from startIdx to endIdx whose
+    //      words are closest to the reference (fewest substitutions,
+    //      insertions and deletions), so its computeWER is the lattice's
+    //      oracle WER; among equally close paths, the one decode(lmScale)
+    //      would score best is taken
+    //    - Returns an empty Hypothesis if endIdx cannot be reached
+    // Notes:
+    //    - Throws IOException if the reference file cannot be read
+    public Hypothesis oracleHypothesis(String referenceFilename, double lmScale) throws IOException {
+        return oracleHypothesis(Hypothesis.readReference(referenceFilename), lmScale);
+    }
+
+    // oracleHypothesis
+    // Pre-conditions:
+    //    - reference holds the Vocabulary ids of the reference words
+    //    - lmScale specifies how much lmScore should be weighted, as in decode
+    // Post-conditions:
+    //    - Same as oracleHypothesis(String, double) for that reference
+    // Notes:
+    //    - An edit distance DP composed with the lattice: every node keeps a
+    //      row of (edits, score) pairs, one per reference prefix length j,
+    //      for the best path from startIdx to the node that covers exactly
+    //      the first j reference words.  Nodes are visited in topological
+    //      order, and each incoming edge extends its source's row by the
+    //      words the edge adds to a Hypothesis (none for -silence-, the
+    //      parts of a multiword), so the DP is O(E * referenceLength)
+    //    - The rows of all reachable nodes are kept, O(V * referenceLength)
+    //      memory, and the path is recovered by working out again which
+    //      incoming edge produced each cell on it
+    Hypothesis oracleHypothesis(int reference[], double lmScale) {
+        int width = reference.length + 1;
+        int topSortNodes [] = topologicalOrder();
+        int edits [][] = new int [this.numNodes][];      // Null for unreachable nodes
+        long scores [][] = new long [this.numNodes][];
+        OracleEdge through = new OracleEdge(reference);
+        
+        for(int j =0; j < topSortNodes.length; j++){
+            int n = topSortNodes[j];
+            int rowEdits [] = new int [width];
+            long rowScores [] = new long [width];
+            if(n == this.startIdx){
+                for(int k =0; k < width; k++)
+                    rowEdits[k] = k;                     // Deleting the first k words
+            }else{
+                Arrays.fill(rowEdits, OracleEdge.UNREACHED);
+                for(int i = this.inEdgeOffsets[n]; i < this.inEdgeOffsets[n+1]; i++){
+                    int e = this.inEdges[i];
+                    int from = this.edgeSources[e];
+                    if(edits[from] == null)
+                        continue;
+                    through.extend(edits[from], scores[from], VOCABULARY.wordParts(this.edgeLabels[e]),
+                                   combinedScore(e, lmScale));
+                    int last = through.numRows - 1;
+                    for(int k =0; k < width; k++){
+                        if(OracleEdge.better(through.edits[last][k], through.scores[last][k], rowEdits[k], rowScores[k])){
+                            rowEdits[k] = through.edits[last][k];
+                            rowScores[k] = through.scores[last][k];
+                        }
+                    }
+                }
+                //the reference words between two nodes may also be deleted
+                for(int k =1; k < width; k++){
+                    if(OracleEdge.better(rowEdits[k-1] + 1, rowScores[k-1], rowEdits[k], rowScores[k])){
+                        rowEdits[k] = rowEdits[k-1] + 1;
+                        rowScores[k] = rowScores[k-1];
+                    }
+                }
+            }
+            edits[n] = rowEdits;
+            scores[n] = rowScores;
+        }
+        
+        Hypothesis h = new Hypothesis();
+        if(edits[this.endIdx] == null)
+            return h;
+        
+        //walk back from (endIdx, all words), finding for each cell the
+        //incoming edge, or the deletion, that produced it
+        int path [] = new int [16];
+        int length = 0;
+        int node = this.endIdx, k = width - 1;
+        while(node != this.startIdx){
+            int found = -1;
+            for(int i = this.inEdgeOffsets[node]; i < this.inEdgeOffsets[node+1] && found < 0; i++){
+                int e = this.inEdges[i];
+                int from = this.edgeSources[e];
+                if(edits[from] == null)
+                    continue;
+                through.extend(edits[from], scores[from], VOCABULARY.wordParts(this.edgeLabels[e]),
+                               combinedScore(e, lmScale));
+                int last = through.numRows - 1;
+                if(through.edits[last][k] == edits[node][k] && through.scores[last][k] == scores[node][k]){
+                    found = e;
+                    k = through.traceBack(k);
+                    node = from;
+                }
+            }
+            if(found < 0){
+                k--;                                     // A deleted reference word
+            }else{
+                if(length == path.length)
+                    path = Arrays.copyOf(path, 2 * length);
+                path[length++] = found;
+            }
+        }
+        for(int i = length - 1; i >= 0; i--)
+            h.addWord(this.edgeLabels[path[i]], combinedScore(path[i], lmScale));
+        return h;
+    }
+    
+    // OracleEdge - the edit distance rows oracleHypothesis computes across
+    //   one edge: row 0 is the source node's row plus the edge's score, and
+    //   row p+1 follows it with the edge's p'th word, as an insertion, a
+    //   match or substitution of reference word j-1, or with later reference
+    //   words deleted.  The rows are reused from edge to edge
+    private static final class OracleEdge {
+        static final int UNREACHED = Integer.MAX_VALUE / 2;
+        
+        private final int reference [];
+        int edits [][] = new int [2][];
+        long scores [][] = new long [2][];
+        int numRows;
+        private int parts [];
+        
+        OracleEdge(int reference[]){
+            this.reference = reference;
+        }
+        
+        // better - true if (e1, s1) is fewer edits, or as many with a lower score
+        static boolean better(int e1, long s1, int e2, long s2){
+            return e1 < e2 || (e1 == e2 && s1 < s2);
+        }
+        
+        void extend(int fromEdits[], long fromScores[], int parts[], int score){
+            int width = fromEdits.length;
+            this.parts = parts;
+            this.numRows = parts.length + 1;
+            if(this.edits.length < this.numRows){
+                this.edits = Arrays.copyOf(this.edits, this.numRows);
+                this.scores = Arrays.copyOf(this.scores, this.numRows);
+            }
+            for(int p =0; p < this.numRows; p++){
+                if(this.edits[p] == null || this.edits[p].length != width){
+                    this.edits[p] = new int [width];
+                    this.scores[p] = new long [width];
+                }
+            }
+            System.arraycopy(fromEdits, 0, this.edits[0], 0, width);
+            for(int k =0; k < width; k++)
+                this.scores[0][k] = fromScores[k] + score;
+            for(int p =0; p < parts.length; p++){
+                int prevEdits [] = this.edits[p], rowEdits [] = this.edits[p+1];
+                long prevScores [] = this.scores[p], rowScores [] = this.scores[p+1];
+                rowEdits[0] = prevEdits[0] + 1;
+                rowScores[0] = prevScores[0];
+                for(int k =1; k < width; k++){
+                    int best = prevEdits[k] + 1;             // Inserted word
+                    long bestScore = prevScores[k];
+                    int cost = prevEdits[k-1] + (parts[p] == this.reference[k-1] ? 0 : 1);
+                    if(better(cost, prevScores[k-1], best, bestScore)){
+                        best = cost;
+                        bestScore = prevScores[k-1];
+                    }
+                    if(better(rowEdits[k-1] + 1, rowScores[k-1], best, bestScore)){
+                        best = rowEdits[k-1] + 1;            // Deleted reference word
+                        bestScore = rowScores[k-1];
+                    }
+                    rowEdits[k] = best;
+                    rowScores[k] = bestScore;
+                }
+            }
+        }
+        
+        // traceBack - the column of row 0 that cell k of the last row came from
+        int traceBack(int k){
+            for(int p = this.numRows - 1; p > 0; p--){
+                int rowEdits [] = this.edits[p], prevEdits [] = this.edits[p-1];
+                long rowScores [] = this.scores[p], prevScores [] = this.scores[p-1];
+                while(true){
+                    if(rowEdits[k] == prevEdits[k] + 1 && rowScores[k] == prevScores[k])
+                        break;
+                    if(k > 0 && rowScores[k] == prevScores[k-1]
+                            && rowEdits[k] == prevEdits[k-1] + (this.parts[p-1] == this.reference[k-1] ? 0 : 1)){
+                        k--;
+                        break;
+                    }
+                    k--;                                     // Deleted reference word
+                }
+            }
+            return k;
         }
-        return p;
     }
 
     //BackTrack
     //Pre-conditions:
-    //  -p[] predecessors of node at index i where i is in the range of 0-p.length
+    //  -p[] holds, for each node and scale, the id of the best edge entering it
+    //   (-1 if none), at p[node * stride + s]
     //Post-condtions:
-    //  -returns a path of node indices from this.startIdx to this.endIdx
-    private int [] BackTrack(int p[]){
+    //  -returns the edge ids of the path from this.startIdx to this.endIdx for
+    //   scale s, in order (empty if this.endIdx cannot be reached)
+    private int [] BackTrack(int p[], int stride, int s){
         int node = this.endIdx;
+        int length = 0;
         
-    
-        Stack<Integer> path = new Stack<Integer>();
-        while(node != this.startIdx){
-            path.push(node);
-            node = p[node];
+        while(node != this.startIdx && p[node * stride + s] != -1){
+            node = this.edgeSources[p[node * stride + s]];
+            length++;
         }
+        if(node != this.startIdx)
+            return new int [0];
                
-        int [] k = new int [path.size()];
-
-        int m=0;
-        while( !path.isEmpty()){
-            k[m] = path.pop();            
-            m++;
+        int [] k = new int [length];
+        node = this.endIdx;
+        for(int m = length-1; m >= 0; m--){
+            k[m] = p[node * stride + s];
+            node = this.edgeSources[k[m]];
         }
         
         return k;                
     }
         
             
+    // computePosteriors
+    // Pre-conditions:
+    //    - lmScale and acousticScale specify how much to weight the lmScore
+    //      and the amScore
+    // Post-conditions:
+    //    - Returns a new double[] indexed by edge id, holding the posterior
+    //      probability of each edge: the total probability of the paths from
+    //      startIdx to endIdx that use the edge, divided by the total
+    //      probability of all such paths
+    //    - Edges on no path from startIdx to endIdx have posterior 0; if
+    //      there is no such path at all, every posterior is 0
+    // Notes:
+    //    - An edge's score, acousticScale * amScore + lmScale * lmScore, is
+    //      treated as a negative log probability.  Unlike decode, the lm
+    //      term is not truncated to an int
+    //    - Forward (alpha) and backward (beta) log probabilities are
+    //      accumulated with log-sum-exp over the topological order, pulling
+    //      over incoming edges forwards and outgoing edges backwards, so the
+    //      cost is O(V + E)
+    public double[] computePosteriors(double lmScale, double acousticScale) {
+        double negInfinity = java.lang.Double.NEGATIVE_INFINITY;
+        double alpha [] = new double [this.numNodes];
+        double beta [] = new double [this.numNodes];
+        double posteriors [] = new double [this.numEdges];
+        int topSortNodes [] = topologicalOrder();
+        
+        Arrays.fill(alpha, negInfinity);
+        Arrays.fill(beta, negInfinity);
+        alpha[this.startIdx] = 0.0;
+        for(int j =1; j < topSortNodes.length; j++){
+            int n = topSortNodes[j];
+            double sum = negInfinity;
+            for(int k = this.inEdgeOffsets[n]; k < this.inEdgeOffsets[n+1]; k++){
+                int e = this.inEdges[k];
+                sum = logAdd(sum, alpha[this.edgeSources[e]] - edgeCost(e, lmScale, acousticScale));
+            }
+            alpha[n] = sum;
+        }
+        
+        double total = alpha[this.endIdx];
+        if(total == negInfinity)
+            return posteriors;
+        
+        beta[this.endIdx] = 0.0;
+        for(int j = topSortNodes.length - 1; j >= 0; j--){
+            int n = topSortNodes[j];
+            if(n == this.endIdx)
+                continue;
+            double sum = negInfinity;
+            for(int e = this.edgeOffsets[n]; e < this.edgeOffsets[n+1]; e++){
+                double through = beta[this.edgeTargets[e]] - edgeCost(e, lmScale, acousticScale);
+                sum = logAdd(sum, through);
+                if(alpha[n] != negInfinity && through != negInfinity)
+                    posteriors[e] = Math.exp(alpha[n] + through - total);
+            }
+            beta[n] = sum;
+        }
+        return posteriors;
+    }
+    
+    // prune
+    // Pre-conditions:
+    //    - lmScale specifies how much to weight the lmScore, as in decode
+    //    - beam is a non-negative score margin; an infinite beam keeps
+    //      every edge on some path from startIdx to endIdx
+    // Post-conditions:
+    //    - Returns a new Lattice holding only the edges whose best path from
+    //      startIdx to endIdx is within beam of the best path overall, and
+    //      the nodes those edges touch (plus startIdx and endIdx)
+    //    - Nodes are renumbered 0..numNodes-1, keeping their relative order;
+    //      the utterance ID, node times and edge scores are unchanged
+    //    - decode(lmScale) on the result gives the same hypothesis as on this
+    //      lattice, and a beam of 0 keeps only the edges on best paths
+    //    - If endIdx cannot be reached, the result has no edges and only the
+    //      two nodes startIdx and endIdx
+    // Notes:
+    //    - The best cost from startIdx to every node and from every node to
+    //      endIdx are found by one forward and one backward pass over the
+    //      topological order, so pruning is O(V + E)
+    //    - Throws IllegalArgumentException if beam is negative or NaN
+    public Lattice prune(double lmScale, double beam) {
+        if(!(beam >= 0))
+            throw new IllegalArgumentException("beam must be non-negative: " + beam);
+        double posInfinity = java.lang.Double.POSITIVE_INFINITY;
+        double toNode [] = new double [this.numNodes];
+        double toEnd [] = new double [this.numNodes];
+        int topSortNodes [] = topologicalOrder();
+        
+        Arrays.fill(toNode, posInfinity);
+        Arrays.fill(toEnd, posInfinity);
+        toNode[this.startIdx] = 0.0;
+        for(int j =1; j < topSortNodes.length; j++){
+            int n = topSortNodes[j];
+            for(int k = this.inEdgeOffsets[n]; k < this.inEdgeOffsets[n+1]; k++){
+                int e = this.inEdges[k];
+                toNode[n] = Math.min(toNode[n], toNode[this.edgeSources[e]] + combinedScore(e, lmScale));
+            }
+        }
+        toEnd[this.endIdx] = 0.0;
+        for(int j = topSortNodes.length - 1; j >= 0; j--){
+            int n = topSortNodes[j];
+            for(int e = this.edgeOffsets[n]; e < this.edgeOffsets[n+1]; e++)
+                toEnd[n] = Math.min(toEnd[n], combinedScore(e, lmScale) + toEnd[this.edgeTargets[e]]);
+        }
+        
+        double threshold = toNode[this.endIdx] + beam;
+        boolean keepEdge [] = new boolean [this.numEdges];
+        boolean keepNode [] = new boolean [this.numNodes];
+        int keptEdges = 0;
+        keepNode[this.startIdx] = true;
+        keepNode[this.endIdx] = true;
+        //with no path to endIdx no edge is kept; an edge off every
+        //start-to-end path costs infinity, which an infinite beam must not keep
+        for(int e=0; e< this.numEdges && toNode[this.endIdx] != posInfinity; e++){
+            double pathCost = toNode[this.edgeSources[e]] + combinedScore(e, lmScale) + toEnd[this.edgeTargets[e]];
+            if(pathCost != posInfinity && pathCost <= threshold){
+                keepEdge[e] = true;
+                keepNode[this.edgeSources[e]] = true;
+                keepNode[this.edgeTargets[e]] = true;
+                keptEdges++;
+            }
+        }
+        
+        Lattice pruned = new Lattice();
+        pruned.utteranceID = this.utteranceID;
+        int newIndex [] = new int [this.numNodes];
+        for(int n=0; n< this.numNodes; n++)
+            newIndex[n] = keepNode[n] ? pruned.numNodes++ : -1;
+        pruned.startIdx = newIndex[this.startIdx];
+        pruned.endIdx = newIndex[this.endIdx];
+        pruned.nodeTimes = new double [pruned.numNodes];
+        for(int n=0; n< this.numNodes; n++){
+            if(newIndex[n] >= 0)
+                pruned.nodeTimes[newIndex[n]] = this.nodeTimes[n];
+        }
+        
+        int from [] = new int [keptEdges], to [] = new int [keptEdges], label [] = new int [keptEdges];
+        int am [] = new int [keptEdges], lm [] = new int [keptEdges];
+        int k = 0;
+        for(int e=0; e< this.numEdges; e++){
+            if(keepEdge[e]){
+                from[k] = newIndex[this.edgeSources[e]];
+                to[k] = newIndex[this.edgeTargets[e]];
+                label[k] = this.edgeLabels[e];
+                am[k] = this.edgeAmScores[e];
+                lm[k] = this.edgeLmScores[e];
+                k++;
+            }
+        }
+        pruned.buildEdgeStore(from, to, label, am, lm, keptEdges);
+        
+        // Every kept node except an unreachable endIdx is reachable from
+        // startIdx, so this lattice's order restricted to the kept nodes is
+        // the pruned lattice's order
+        int order [] = new int [pruned.numNodes];
+        int length = 0;
+        for(int j=0; j< topSortNodes.length; j++){
+            int n = topSortNodes[j];
+            if(newIndex[n] >= 0)
+                order[length++] = newIndex[n];
+        }
+        pruned.topologicalOrder = length == order.length ? order : Arrays.copyOf(order, length);
+        return pruned;
+    }
+    
+    // edgeCost
+    // Pre-conditions:
+    //    - e is a valid edge id
+    // Post-conditions:
+    //    - Returns acousticScale * amScore + lmScale * lmScore for edge e
+    private double edgeCost(int e, double lmScale, double acousticScale){
+        return acousticScale * this.edgeAmScores[e] + lmScale * this.edgeLmScores[e];
+    }
+    
+    // logAdd
+    // Pre-conditions:
+    //    - a and b are natural log probabilities, possibly -Infinity
+    // Post-conditions:
+    //    - Returns log(exp(a) + exp(b)) without underflow or overflow
+    private static double logAdd(double a, double b){
+        double max = Math.max(a, b);
+        if(max == java.lang.Double.NEGATIVE_INFINITY)
+            return max;
+        return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+    }
+        
     // topologicalSort
     // Pre-conditions:
     //    - None
@@ -287,44 +1156,128 @@ public class Lattice {
     //      For example, the 0'th element of the returned array has no 
     //      incoming edges.  More generally, the node in the i'th element 
     //      has no incoming edges from nodes in the i+1'th or later elements
+    // Notes:
+    //    - The order is computed once, when the lattice is loaded; each
+    //      call returns a fresh copy, so callers may modify it freely
     public int[] topologicalSort() {
-        ArrayList<Integer> result = new ArrayList<Integer>();       
-        ArrayList<Integer> S = new ArrayList<Integer>();       
-        int sum = 0;
+        return topologicalOrder().clone();
+    }
+    
+    // topologicalOrder
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the lattice's topological order
+    // Notes:
+    //    - The order is computed when the lattice is loaded, which is also
+    //      where a cycle is detected and reported
+    //    - The returned array is shared and must not be modified
+    private int[] topologicalOrder() {
+        return this.topologicalOrder;
+    }
+    
+    // computeTopologicalOrder
+    // Pre-conditions:
+    //    - source names the file the lattice was loaded from
+    // Post-conditions:
+    //    - Returns a new int[] with a topological sort of the nodes reachable
+    //      from startIdx, by Kahn's algorithm
+    //    - Throws LatticeCycleException if the graph has a cycle
+    // Notes:
+    //    - The output array doubles as the FIFO queue: nodes are appended at
+    //      tail as their last incoming edge is removed and read back at head,
+    //      so every push and pop is O(1) and the sort is O(V + E)
+    //    - Edges that start at nodes unreachable from startIdx also leave
+    //      in-degrees behind; only when that happens is the whole graph
+    //      sorted (see reachableOrder), to tell such dead edges apart from a
+    //      real cycle
+    //    - startIdx is seeded without waiting for its in-degree to reach 0,
+    //      so an edge into it (a cycle through it, or a dead edge) would
+    //      queue it twice; such lattices are also left to reachableOrder
+    private int[] computeTopologicalOrder(String source) throws LatticeCycleException {
+        int order [] = new int [this.numNodes];
+        int head = 0, tail = 0;
         int n;
         
+        if(this.inEdgeOffsets[this.startIdx+1] > this.inEdgeOffsets[this.startIdx])
+            return reachableOrder(source);
+        
         int [] tempInDegrees= new int [this.numNodes];
-        S.add(this.startIdx);             
-
         for(int i= 0; i< this.numNodes; i++)
-            tempInDegrees[i] = this.inDegrees[i];
-        
-        while( !S.isEmpty()){
-            n= S.remove(0);
-            result.add(n);            
-            for(int j =0; j< this.numNodes; j++){
-                if(this.adjMatrix[n][j]!=null){
-                    tempInDegrees[j]--;
-                    if(tempInDegrees[j]==0)
-                        S.add(j);                                                                   
-                }
+            tempInDegrees[i] = this.inEdgeOffsets[i+1] - this.inEdgeOffsets[i];
+        
+        order[tail++] = this.startIdx;
+        while( head < tail){
+            n= order[head++];
+            for(int e = this.edgeOffsets[n]; e< this.edgeOffsets[n+1]; e++){
+                int j = this.edgeTargets[e];
+                tempInDegrees[j]--;
+                if(tempInDegrees[j]==0)
+                    order[tail++] = j;                                                                   
             }
         }        
-
-        int resultSize= result.size();
-        int a [] = new int [resultSize];
-        for(int l=0; l< resultSize; l++)
-            a[l] = result.get(l);
-                                
-        for(int m =0; m< this.numNodes; m++)
-            sum+= tempInDegrees[m];
-            
-        if(sum> 0){
-            System.out.println("graph has cycles, exitiing");
-            System.exit(3);
+        
+        if(tail < this.numNodes){
+            for(int m =0; m< this.numNodes; m++){
+                if(tempInDegrees[m] > 0)
+                    return reachableOrder(source);
+            }
+        }
+        
+        return tail == order.length ? order : Arrays.copyOf(order, tail);
+    }
+    
+    // reachableOrder
+    // Pre-conditions:
+    //    - source names the file the lattice was loaded from
+    // Post-conditions:
+    //    - Returns a new int[] with a topological sort of the nodes reachable
+    //      from startIdx, taken from a sort of the whole graph
+    //    - Throws LatticeCycleException, naming the nodes that lie on or
+    //      after a cycle, if the graph is not acyclic
+    private int[] reachableOrder(String source) throws LatticeCycleException {
+        int order [] = new int [this.numNodes];
+        int head = 0, tail = 0;
+        int [] tempInDegrees= new int [this.numNodes];
+        for(int i= 0; i< this.numNodes; i++){
+            tempInDegrees[i] = this.inEdgeOffsets[i+1] - this.inEdgeOffsets[i];
+            if(tempInDegrees[i] == 0)
+                order[tail++] = i;
+        }
+        while( head < tail){
+            int n= order[head++];
+            for(int e = this.edgeOffsets[n]; e< this.edgeOffsets[n+1]; e++){
+                int j = this.edgeTargets[e];
+                if(--tempInDegrees[j]==0)
+                    order[tail++] = j;
+            }
+        }
+        
+        if(tail < this.numNodes){
+            StringBuilder nodes = new StringBuilder();
+            int listed = 0;
+            for(int m =0; m< this.numNodes && listed < 10; m++){
+                if(tempInDegrees[m] > 0)
+                    nodes.append(listed++ == 0 ? "" : ", ").append(m);
+            }
+            if(this.numNodes - tail > listed)
+                nodes.append(", ...");
+            throw new LatticeCycleException(source, Collections.singletonList(
+                    "the graph has a cycle through " + (this.numNodes - tail) + " nodes (" + nodes + ")"));
         }
         
-        return a;
+        boolean reachable [] = new boolean [this.numNodes];
+        reachable[this.startIdx] = true;
+        int kept = 0;
+        for(int k=0; k< this.numNodes; k++){
+            int n = order[k];
+            if(reachable[n]){
+                order[kept++] = n;
+                for(int e = this.edgeOffsets[n]; e< this.edgeOffsets[n+1]; e++)
+                    reachable[this.edgeTargets[e]] = true;
+            }
+        }
+        return Arrays.copyOf(order, kept);
     }
         
 
@@ -334,33 +1287,86 @@ public class Lattice {
     // Post-conditions:
     //    - Returns the total number of distinct paths from startIdx to endIdx
     //       (do not count other subpaths)
+    //    - Paths that differ only in which of several parallel edges they
+    //       take are counted separately
     // Hints:
     //    - The straightforward recursive traversal is prohibitively slow
     //    - This can be solved efficiently using something similar to the 
     //        shortest path algorithm used in decode
     //        Instead of min'ing scores over the incoming edges, you'll want to 
     //        do some other operation...
-
+    // Notes:
+    //    - Counts are accumulated in a long[] with Math.addExact, so no objects
+    //      are allocated while they fit in 64 bits.  A node whose count
+    //      overflows is promoted to a BigInteger, and only counts that depend
+    //      on a promoted node are computed with BigInteger arithmetic
     public java.math.BigInteger countAllPaths(){
-        BigInteger countNodePaths [] = new BigInteger[ this.numNodes];
-        int topSortNodes [] = topologicalSort();
+        long countNodePaths [] = new long [this.numNodes];
+        BigInteger bigNodePaths [] = null;    // Allocated on the first overflow;
+                                              //   bigNodePaths[n] != null once
+                                              //   node n has been promoted
+        int topSortNodes [] = topologicalOrder();
         int topSortLimit = topSortNodes.length;
-        int paths=0;
         int n=0;
-        
-        for(int l=0; l< this.numNodes; l++)
-            countNodePaths[l] = BigInteger.ZERO;
                     
-        countNodePaths[this.startIdx] = BigInteger.ONE;        
+        countNodePaths[this.startIdx] = 1;
         
         for(int k=0; k< topSortLimit; k++){
                 n= topSortNodes[k];
-                for(int i=0; i< this.numNodes; i++){
-                        if(this.adjMatrix[i][n] != null)                                                                               
-                            countNodePaths[n] = countNodePaths[n].add(countNodePaths[i]);                        
+                long count = countNodePaths[n];
+                BigInteger bigCount = null;
+                for(int i = this.inEdgeOffsets[n]; i< this.inEdgeOffsets[n+1]; i++){
+                        int from = this.edgeSources[this.inEdges[i]];
+                        if(bigCount == null && (bigNodePaths == null || bigNodePaths[from] == null)){
+                            try{
+                                count = Math.addExact(count, countNodePaths[from]);
+                                continue;
+                            }catch(ArithmeticException e){
+                                bigCount = BigInteger.valueOf(count);
+                            }
+                        }
+                        if(bigCount == null)
+                            bigCount = BigInteger.valueOf(count);
+                        bigCount = bigCount.add(bigNodePaths != null && bigNodePaths[from] != null
+                                                ? bigNodePaths[from] : BigInteger.valueOf(countNodePaths[from]));
+                }
+                countNodePaths[n] = count;
+                if(bigCount != null){
+                    if(bigNodePaths == null)
+                        bigNodePaths = new BigInteger [this.numNodes];
+                    bigNodePaths[n] = bigCount;
                 }
        }        
-       return countNodePaths[this.endIdx];
+       if(bigNodePaths != null && bigNodePaths[this.endIdx] != null)
+           return bigNodePaths[this.endIdx];
+       return BigInteger.valueOf(countNodePaths[this.endIdx]);
+    }
+    
+    // log10PathCount
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns log10 of countAllPaths(), or -Infinity if there is no path
+    //      from startIdx to endIdx
+    // Notes:
+    //    - The count is accumulated as a natural log with log-sum-exp over
+    //      the topological order, so it never overflows and allocates
+    //      nothing; the result is accurate to double precision, which is
+    //      enough for the magnitude but not for the exact count
+    public double log10PathCount(){
+        double logNodePaths [] = new double [this.numNodes];
+        int topSortNodes [] = topologicalOrder();
+        
+        Arrays.fill(logNodePaths, java.lang.Double.NEGATIVE_INFINITY);
+        logNodePaths[this.startIdx] = 0.0;
+        for(int k=0; k< topSortNodes.length; k++){
+            int n = topSortNodes[k];
+            double sum = logNodePaths[n];
+            for(int i = this.inEdgeOffsets[n]; i< this.inEdgeOffsets[n+1]; i++)
+                sum = logAdd(sum, logNodePaths[this.edgeSources[this.inEdges[i]]]);
+            logNodePaths[n] = sum;
+        }
+        return logNodePaths[this.endIdx] / Math.log(10);
     }
     
     
@@ -374,13 +1380,9 @@ public class Lattice {
     public double getLatticeDensity() {        
         int silenceCount=0;
         
-        for(int i=0; i< this.numNodes; i++){
-            for(int j=0; j< this.numNodes; j++){
-                if(this.adjMatrix[i][j] != null){
-                    if( !this.adjMatrix[i][j].getLabel().equals("-silence-"))
-                        silenceCount++;
-                }                
-            }            
+        for(int e=0; e< this.edgeTargets.length; e++){
+            if( !VOCABULARY.isSilence(this.edgeLabels[e]))
+                silenceCount++;
         }
         return (double)silenceCount /(nodeTimes[this.endIdx] - nodeTimes[this.startIdx]);
     }
@@ -395,28 +1397,22 @@ public class Lattice {
     //    - For context on the dot format, see    
     //        - http://en.wikipedia.org/wiki/DOT_%28graph_description_language%29
     //        - http://www.graphviz.org/pdf/dotguide.pdf
-    public void writeAsDot(String dotFilename) {        
+    //    - Throws IOException if the file cannot be opened or written
+    public void writeAsDot(String dotFilename) throws IOException {        
         File dotFile;
         
         if( dotFilename != null){                    
-            try{
-                dotFile = new File(dotFilename);
-                PrintWriter printer = new PrintWriter(dotFile); 
-                String dotString = this.toString();
-                
-                printer.write("digraph g { " + "\n   rankdir=\"LR\"\n");
-                for(int i=0; i<this.numNodes; i++){                    
-                    for(int j=0; j<this.numNodes; j++){
-                        if(this.adjMatrix[i][j] != null)
-                            printer.write("   " + i + " -> " + j + " [label = \"" + this.adjMatrix[i][j].getLabel()+ "\"]\n" );
-                    }
-                }                
-                printer.write("}");
-                printer.close();                        
-            }catch(FileNotFoundException e){        
-                System.out.println("Error: Unable to open file " + dotFilename);
-                System.exit(3);                
-            }
+            dotFile = new File(dotFilename);
+            PrintWriter printer = new PrintWriter(dotFile); 
+            
+            printer.write("digraph g { " + "\n   rankdir=\"LR\"\n");
+            for(int e=0; e<this.edgeTargets.length; e++){                    
+                printer.write("   " + this.edgeSources[e] + " -> " + this.edgeTargets[e] + " [label = \"" + VOCABULARY.getWord(this.edgeLabels[e])+ "\"]\n" );
+            }                
+            printer.write("}");
+            printer.close();                        
+            if(printer.checkError())
+                throw new IOException("Error writing file " + dotFilename);
         }
         
         return;
@@ -426,63 +1422,301 @@ public class Lattice {
     // Pre-conditions:
     //    - latticeOutputFilename is the name of the intended output file
     // Post-conditions:
-    //    - The lattice's toString() representation is written to the output file
+    //    - The lattice is written to the output file, one header field, node
+    //      or edge per line, in the same order as toString()
     // Note:
     //    - This output file should be in the same format as the input .lattice file
-    public void saveAsFile(String latticeOutputFilename) {        
-        File latticeOutputFile;
-        
+    //    - The text is formatted straight from the fields into a reusable
+    //      buffer (see TextSink) and streamed to the file as UTF-8
+    //    - Throws IOException if the file cannot be opened or written
+    public void saveAsFile(String latticeOutputFilename) throws IOException {        
         if( latticeOutputFilename != null){            
+            java.io.Writer writer = new java.io.OutputStreamWriter(
+                    java.nio.file.Files.newOutputStream(java.nio.file.Paths.get(latticeOutputFilename)),
+                    StandardCharsets.UTF_8);
             try{
-                latticeOutputFile = new File(latticeOutputFilename);
-                PrintWriter printer = new PrintWriter(latticeOutputFile); 
-                String latticString = this.toString();
-                Scanner Lattice1 = new Scanner(latticString);        
-                
-                printer.write(Lattice1.next() +" "+ Lattice1.next() + "\n");
-                printer.write(Lattice1.next() +" "+ Lattice1.next() + "\n");
-                printer.write(Lattice1.next() +" "+ Lattice1.next() + "\n");
-                printer.write(Lattice1.next() +" "+ Lattice1.next() + "\n");
-                printer.write(Lattice1.next() +" "+ Lattice1.next() + "\n");        
-                        
-                for(int i=0; i<this.numNodes; i++)
-                    printer.write(Lattice1.next() +" "+ Lattice1.next() +" "+ Lattice1.next() + "\n");                
-                
-                for(int i=0; i<this.numEdges; i++)
-                    printer.write(Lattice1.next() +" "+ Lattice1.next() +" "+ Lattice1.next() +" "+ Lattice1.next()+ " "+ Lattice1.next()+" "+          Lattice1.next() +"\n");                
-                
-                printer.close();                        
-            }catch(FileNotFoundException e){
-                System.out.println("Error: Unable to open file " + latticeOutputFilename);
-                System.exit(3);                
+                TextSink text = new TextSink(writer, TextSink.MAX_BUFFER);
+                writeText(text, '\n');
+                text.flush();
+            }finally{
+                writer.close();
             }
         }                        
         return;
     }
 
+    // writeText
+    // Pre-conditions:
+    //    - text is the sink to write to, and separator the character put
+    //      after each header field, node and edge
+    // Post-conditions:
+    //    - The lattice is written to text in the input file format, nodes
+    //      ascending by index and edges in edge id order
+    private void writeText(TextSink text, char separator) throws IOException {
+        text.append("id ").append(this.utteranceID).append(separator)
+            .append("start ").append(this.startIdx).append(separator)
+            .append("end ").append(this.endIdx).append(separator)
+            .append("numNodes ").append(this.numNodes).append(separator)
+            .append("numEdges ").append(this.numEdges).append(separator);
+        for(int i= 0; i< this.numNodes; i++)
+            text.append("node ").append(i).append(' ').appendTime(this.nodeTimes[i]).append(separator);
+        for(int e= 0; e< this.numEdges; e++){
+            text.append("edge ").append(this.edgeSources[e]).append(' ').append(this.edgeTargets[e]).append(' ')
+                .append(VOCABULARY.getWord(this.edgeLabels[e])).append(' ')
+                .append(this.edgeAmScores[e]).append(' ').append(this.edgeLmScores[e]).append(separator);
+        }
+    }
+
+    // TextSink - formats lattice text into a reusable char buffer and hands
+    //   it to an Appendable in large chunks.  Integers and times are written
+    //   digit by digit, so formatting creates no Strings
+    private static final class TextSink {
+        static final int MAX_BUFFER = 8192;
+        
+        private final Appendable out;
+        private final char buffer [];
+        private int length;
+        
+        // bufferSize is clamped to 32..MAX_BUFFER chars, room enough for
+        // any single number
+        TextSink(Appendable out, int bufferSize){
+            this.out = out;
+            this.buffer = new char [Math.max(32, Math.min(MAX_BUFFER, bufferSize))];
+        }
+        
+        TextSink append(char c) throws IOException {
+            if(this.length == this.buffer.length)
+                flush();
+            this.buffer[this.length++] = c;
+            return this;
+        }
+        
+        TextSink append(String s) throws IOException {
+            for(int start = 0; start < s.length(); ){
+                if(this.length == this.buffer.length)
+                    flush();
+                int end = Math.min(s.length(), start + this.buffer.length - this.length);
+                s.getChars(start, end, this.buffer, this.length);
+                this.length += end - start;
+                start = end;
+            }
+            return this;
+        }
+        
+        TextSink append(long value) throws IOException {
+            if(this.buffer.length - this.length < 20)
+                flush();
+            if(value < 0){
+                this.buffer[this.length++] = '-';
+                if(value == Long.MIN_VALUE)
+                    return append("9223372036854775808");
+                value = -value;
+            }
+            int end = this.length + digits(value);
+            for(int i = end - 1; i >= this.length; i--){
+                this.buffer[i] = (char)('0' + value % 10);
+                value /= 10;
+            }
+            this.length = end;
+            return this;
+        }
+        
+        // appendTime - time to two decimal places, exactly as
+        //   String.format("%.2f", time) writes it in an English locale: the
+        //   shortest decimal form of the double, rounded half up
+        TextSink appendTime(double time) throws IOException {
+            if(Double.isNaN(time) || Double.isInfinite(time))
+                return append(Double.toString(time));
+            if(time < 0 || (time == 0 && 1 / time < 0))
+                append('-');
+            double magnitude = Math.abs(time);
+            if(magnitude >= 1e15)
+                return append(java.math.BigDecimal.valueOf(magnitude)
+                              .setScale(2, java.math.RoundingMode.HALF_UP).toPlainString());
+            long hundredths;
+            double scaled = magnitude * 100;
+            double fraction = scaled - Math.floor(scaled);
+            if(magnitude < 1e7 && Math.abs(fraction - 0.5) > 1e-6){
+                // The product is within a few ulps of the true value, far
+                // less than its distance from a rounding tie
+                hundredths = (long)Math.floor(scaled) + (fraction > 0.5 ? 1 : 0);
+            }else{
+                hundredths = java.math.BigDecimal.valueOf(magnitude)
+                             .setScale(2, java.math.RoundingMode.HALF_UP).unscaledValue().longValue();
+            }
+            append(hundredths / 100).append('.');
+            append((char)('0' + hundredths % 100 / 10));
+            return append((char)('0' + hundredths % 10));
+        }
+        
+        // digits - the number of decimal digits in value >= 0
+        private static int digits(long value){
+            int count = 1;
+            while(value >= 10){
+                value /= 10;
+                count++;
+            }
+            return count;
+        }
+        
+        void flush() throws IOException {
+            if(this.out instanceof java.io.Writer)
+                ((java.io.Writer)this.out).write(this.buffer, 0, this.length);
+            else if(this.out instanceof StringBuilder)
+                ((StringBuilder)this.out).append(this.buffer, 0, this.length);
+            else
+                this.out.append(java.nio.CharBuffer.wrap(this.buffer, 0, this.length));
+            this.length = 0;
+        }
+    }
+
+    // saveAsBinaryFile - write in the binary lattice format read by openMapped
+    // Pre-conditions:
+    //    - latticeOutputPath is the path of the intended output file
+    // Post-conditions:
+    //    - The lattice is written to the output file in the binary format
+    //      described at the top of this class
+    // Note:
+    //    - Throws IOException if the file cannot be written
+    public void saveAsBinaryFile(Path latticeOutputPath) throws IOException {
+        byte idBytes [] = this.utteranceID.getBytes(StandardCharsets.UTF_8);
+        
+        //the file carries its own label table: the distinct word ids, sorted
+        int wordIds [] = this.edgeLabels.clone();
+        Arrays.sort(wordIds);
+        int numLabels = 0;
+        for(int i=0; i< wordIds.length; i++)
+            if(numLabels == 0 || wordIds[i] != wordIds[numLabels-1])
+                wordIds[numLabels++] = wordIds[i];
+        int localLabels [] = new int [this.numEdges];
+        for(int e=0; e< this.numEdges; e++)
+            localLabels[e] = Arrays.binarySearch(wordIds, 0, numLabels, this.edgeLabels[e]);
+        
+        byte labelBytes [][] = new byte [numLabels][];
+        int labelOffsets [] = new int [numLabels + 1];
+        for(int i=0; i< numLabels; i++){
+            labelBytes[i] = VOCABULARY.getWord(wordIds[i]).getBytes(StandardCharsets.UTF_8);
+            labelOffsets[i+1] = labelOffsets[i] + labelBytes[i].length;
+        }
+        
+        long size = align8(BINARY_HEADER_BYTES + idBytes.length) + 8L * this.numNodes
+                  + 4L * (this.numNodes + 1) + 16L * this.numEdges
+                  + 4L * labelOffsets.length + labelOffsets[numLabels];
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Lattice " + this.utteranceID + " is too large for the binary format");
+        
+        ByteBuffer buffer = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(BINARY_MAGIC).putInt(BINARY_VERSION)
+              .putInt(this.startIdx).putInt(this.endIdx)
+              .putInt(this.numNodes).putInt(this.numEdges)
+              .putInt(numLabels).putInt(idBytes.length)
+              .put(idBytes);
+        buffer.position(align8(buffer.position()));
+        
+        buffer.asDoubleBuffer().put(this.nodeTimes);
+        buffer.position(buffer.position() + 8 * this.numNodes);
+        
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(this.edgeOffsets).put(this.edgeTargets).put(this.edgeAmScores)
+            .put(this.edgeLmScores).put(localLabels).put(labelOffsets);
+        buffer.position(buffer.position() + 4 * ints.position());
+        
+        for(int i=0; i< labelBytes.length; i++)
+            buffer.put(labelBytes[i]);
+        buffer.flip();
+        
+        FileChannel channel = FileChannel.open(latticeOutputPath, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try{
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }finally{
+            channel.close();
+        }
+    }
+
     // uniqueWordsAtTime - find all words at a certain point in time
     // Pre-conditions:
     //    - time is the time you want to query
     // Post-conditions:
     //    - A HashSet is returned containing all unique words that overlap 
-    //      with the specified time
+    //      with the specified time: the words on every edge whose start node
+    //      time is <= time and whose end node time is >= time
     //     (If the time is not within the time range of the lattice, the Hashset should be empty)
+    // Notes:
+    //    - Answered from the edge interval index in O(log E + k) for k hits
     public java.util.HashSet<String> uniqueWordsAtTime(double time) { 
+        return uniqueWords(intervalIndex().containing(time));
+    }
+
+    // uniqueWordsInRange - find all words in a span of time
+    // Pre-conditions:
+    //    - startTime <= endTime delimit the span you want to query
+    // Post-conditions:
+    //    - A HashSet is returned containing all unique words on edges whose
+    //      time span shares at least one point with [startTime, endTime]
+    // Notes:
+    //    - Answered from the edge interval index in O(log E + k) for k hits
+    //    - Throws IllegalArgumentException if startTime > endTime
+    public java.util.HashSet<String> uniqueWordsInRange(double startTime, double endTime) { 
+        if(!(startTime <= endTime))
+            throw new IllegalArgumentException("empty time range: " + startTime + " to " + endTime);
+        return uniqueWords(intervalIndex().overlapping(startTime, endTime));
+    }
+
+    // uniqueWords
+    // Pre-conditions:
+    //    - edges holds edge ids
+    // Post-conditions:
+    //    - Returns the set of words on those edges
+    private HashSet<String> uniqueWords(int edges[]) {
         HashSet<String> wordSet = new HashSet<String>();
-        
-        for(int i=0; i< this.numNodes; i++){
-            if(this.nodeTimes[i]==time) {
-                for(int j =0; j<this.numNodes; j++){                    
-                    if(this.nodeTimes[j]==time) {  
-                        if(this.adjMatrix[i][j] != null)
-                            wordSet.add(this.adjMatrix[i][j].getLabel());                                            
-                    }
-                }
-            }
-        }        
+        for(int k=0; k< edges.length; k++)
+            wordSet.add(VOCABULARY.getWord(this.edgeLabels[edges[k]]));
         return wordSet;
     }
 
+    // intervalIndex
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns an index over the time spans [nodeTimes[source],
+    //      nodeTimes[target]] of the edges (earlier time first), building it
+    //      on first use
+    // Notes:
+    //    - The lattice never changes, so if two threads race to build the
+    //      index they produce equivalent ones and either may be kept; the
+    //      volatile field publishes the finished index safely
+    private IntervalIndex intervalIndex() {
+        IntervalIndex index = this.intervalIndex;
+        if(index == null){
+            double starts [] = new double [this.numEdges];
+            double ends [] = new double [this.numEdges];
+            for(int e=0; e< this.numEdges; e++){
+                double from = this.nodeTimes[this.edgeSources[e]], to = this.nodeTimes[this.edgeTargets[e]];
+                starts[e] = Math.min(from, to);
+                ends[e] = Math.max(from, to);
+            }
+            index = new IntervalIndex(starts, ends);
+            this.intervalIndex = index;
+        }
+        return index;
+    }
+
+    // sortedHits - find in sorted order all times where a given token appears
+    // Pre-conditions:
+    //    - word is the word (or multiword) that you want to find in the lattice
+    // Post-conditions:
+    //    - Returns a new double[] holding the midpoint (halfway between start
+    //      and end time) of each edge labelled word, in ascending order, or
+    //      an empty array if the word does not appear
+    // Notes:
+    //    - Answered from the word index in O(1) plus the size of the result
+    public double[] sortedHits(String word) {
+        int wordId = VOCABULARY.lookup(word);
+        return wordId == -1 ? new double [0] : wordHits().get(wordId);
+    }
+
     // printSortedHits - print in sorted order all times where a given token appears
     // Pre-conditions:
     //    - word is the word (or multiword) that you want to find in the lattice
@@ -492,24 +1726,94 @@ public class Lattice {
     //      All times should be printed on the same line, separated by a single space character
     //      (If no instances appear, nothing is printed) 
     // Note:
-    //    - java.util.Arrays.sort can be used to sort
-    //    - PrintStream's format method can print numbers to two decimal places
+    //    - The hits come from sortedHits
     public void printSortedHits(String word) {        
-        ArrayList<Double> occuranceArray = new ArrayList<Double>();
-        
-        for(int i =0; i< this.numNodes; i++){
-            for(int j=0; j< this.numNodes; j++)
-                if(this.adjMatrix[i][j] != null && this.adjMatrix[i][j].getLabel().equals(word))
-                   occuranceArray.add((this.nodeTimes[j] + this.nodeTimes[i])/2.0 );                   
-        }
-        
-        Collections.sort(occuranceArray);
-        int occurArraLimit = occuranceArray.size();
-        for(int i=0; i< occurArraLimit; i++){
-            System.out.format("%2.2f", occuranceArray.get(i));
+        double hits [] = sortedHits(word);
+        for(int i=0; i< hits.length; i++){
+            System.out.format("%2.2f", hits[i]);
             System.out.print(" ");        
         }
         System.out.println();                
         return;
     }
+
+    // wordHits
+    // Pre-conditions:
+    //    - None
+    // Post-conditions:
+    //    - Returns the index from word to hit times, building it on first use
+    // Notes:
+    //    - As with intervalIndex, racing threads build equivalent indexes and
+    //      either may be kept
+    private WordHits wordHits() {
+        WordHits hits = this.wordHits;
+        if(hits == null){
+            hits = new WordHits(this);
+            this.wordHits = hits;
+        }
+        return hits;
+    }
+
+    // WordHits - an inverted index from Vocabulary id to the sorted midpoints
+    //   of the edges carrying that word.  The times of all words sit in one
+    //   array, grouped by word and sorted within each group; an open
+    //   addressing table keyed by word id finds a word's group in O(1)
+    private static final class WordHits {
+        final int words [];        // The distinct words, one per group
+        final int offsets [];      // Group g is times[offsets[g]] .. times[offsets[g+1]-1]
+        final double times [];
+        final int table [];        // Group numbers, by hash of the word id; -1 if empty
+        
+        WordHits(Lattice lattice){
+            int numEdges = lattice.numEdges;
+            // Sorting (label, edge) pairs groups the edges by word
+            long byWord [] = new long [numEdges];
+            for(int e=0; e< numEdges; e++)
+                byWord[e] = ((long)lattice.edgeLabels[e] << 32) | e;
+            Arrays.sort(byWord);
+            
+            int numWords = 0;
+            int words [] = new int [numEdges];
+            int offsets [] = new int [numEdges + 1];
+            this.times = new double [numEdges];
+            for(int k=0; k< numEdges; k++){
+                int word = (int)(byWord[k] >>> 32), e = (int)byWord[k];
+                if(numWords == 0 || words[numWords - 1] != word){
+                    offsets[numWords] = k;
+                    words[numWords++] = word;
+                }
+                this.times[k] = (lattice.nodeTimes[lattice.edgeTargets[e]] + lattice.nodeTimes[lattice.edgeSources[e]])/2.0;
+            }
+            offsets[numWords] = numEdges;
+            this.words = Arrays.copyOf(words, numWords);
+            this.offsets = Arrays.copyOf(offsets, numWords + 1);
+            for(int g=0; g< numWords; g++)
+                Arrays.sort(this.times, this.offsets[g], this.offsets[g+1]);
+            
+            this.table = new int [Integer.highestOneBit(Math.max(2 * numWords, 1)) << 1];
+            Arrays.fill(this.table, -1);
+            for(int g=0; g< numWords; g++){
+                int slot = slot(this.words[g]);
+                while(this.table[slot] != -1)
+                    slot = (slot + 1) & (this.table.length - 1);
+                this.table[slot] = g;
+            }
+        }
+        
+        // slot - the first table slot to probe for word
+        int slot(int word){
+            int hash = word * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (this.table.length - 1);
+        }
+        
+        // get - a new array of the sorted hit times of word, empty if none
+        double[] get(int word){
+            for(int slot = slot(word); this.table[slot] != -1; slot = (slot + 1) & (this.table.length - 1)){
+                int g = this.table[slot];
+                if(this.words[g] == word)
+                    return Arrays.copyOfRange(this.times, this.offsets[g], this.offsets[g+1]);
+            }
+            return new double [0];
+        }
+    }
 }
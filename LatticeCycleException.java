@@ -0,0 +1,28 @@
+/*
+ * LatticeCycleException.java
+ *
+ * Thrown when a lattice file describes a graph with a cycle.  A lattice must
+ * be a directed acyclic graph: decoding and path counting are only defined
+ * over a topological order.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.List;
+
+public class LatticeCycleException extends LatticeFormatException {
+    private static final long serialVersionUID = 1L;
+
+    // Constructor
+
+    // LatticeCycleException
+    // Preconditions:
+    //     - source names the file that was being read
+    //     - problems describes the cycle (and any other problems found)
+    // Post-conditions
+    //     - Same as LatticeFormatException
+    public LatticeCycleException(String source, List<String> problems) {
+        super(source, problems);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * LatticeFormatException.java
+ *
+ * Thrown when a lattice file cannot be loaded because its contents are not a
+ * valid lattice.  The exception carries every problem that was found, not
+ * just the first, so one pass over a bad file reports all of them.
+ *
+ * It is an IOException, so code that already handles I/O failures while
+ * loading a lattice handles malformed files too; catch this type to tell
+ * the two apart.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class LatticeFormatException extends java.io.IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] problems;  // Each problem found, in file order
+
+    // Constructors
+
+    // LatticeFormatException
+    // Preconditions:
+    //     - source names the file (or other input) that was being read
+    //     - problems holds at least one description of what is wrong
+    // Post-conditions
+    //     - The message names source and the first problem, and says how
+    //       many more there are
+    public LatticeFormatException(String source, List<String> problems) {
+        super(message(source, problems));
+        this.problems = problems.toArray(new String[problems.size()]);
+    }
+
+    // LatticeFormatException - a single problem
+    public LatticeFormatException(String source, String problem) {
+        this(source, Collections.singletonList(problem));
+    }
+
+    // LatticeFormatException - a single problem, caused by another exception
+    public LatticeFormatException(String source, String problem, Throwable cause) {
+        super(message(source, Collections.singletonList(problem)), cause);
+        this.problems = new String[] { problem };
+    }
+
+    // Accessors
+
+    // getProblems
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns a read-only list of every problem found, in file order
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(Arrays.asList(this.problems));
+    }
+
+    // message
+    // Preconditions:
+    //     - problems is not empty
+    // Post-conditions
+    //     - Returns the exception message for source and problems
+    private static String message(String source, List<String> problems) {
+        String message = source + ": " + problems.get(0);
+        if( problems.size() > 1 ) {
+            message += " (and " + (problems.size() - 1) + " more problems)";
+        }
+        return message;
+    }
+}
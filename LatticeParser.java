@@ -0,0 +1,625 @@
+/*
+ * LatticeParser.java
+ *
+ * Reads a lattice file in the simplified text format straight from its
+ * bytes.  The whole file is pulled through a FileChannel into a single
+ * ByteBuffer and tokenized in place: integers and fixed-point times are
+ * accumulated digit by digit, and an edge label only becomes a String (and
+ * is interned in the global Vocabulary) the first time that word is seen in
+ * the file.
+ *
+ * The format is line oriented, and so is error handling: a malformed line
+ * is recorded as a problem and parsing resumes at the next line, so a
+ * single pass reports everything wrong with a file.
+ *
+ * The parser is single use: construct it, call parse() once, then read the
+ * results from its fields.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class LatticeParser {
+    // Exact powers of ten: a decimal whose digits fit in 53 bits and that has
+    // at most 22 fraction digits converts with a single correctly rounded
+    // division, giving the same double as Double.parseDouble
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final int MAX_PROBLEMS = 100;   // Stop reading after this many
+    private static final String[] HEADER_KEYS = { "id", "start", "end", "numNodes", "numEdges" };
+    // The shortest possible node and edge lines ("node 0 0", "edge 0 0 a 0 0"
+    // less a little slack); header counts are checked against them so that a
+    // corrupt header cannot make the parser allocate more than the file holds
+    private static final int MIN_NODE_LINE_BYTES = 8;
+    private static final int MIN_EDGE_LINE_BYTES = 12;
+
+    // LineError - thrown inside parse() when the current line is malformed;
+    //   caught at the end of the line, recorded as a problem, and parsing
+    //   moves on to the next line
+    private static final class LineError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LineError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final String filename;    // For problem reports
+    private byte[] buf;               // The raw bytes of the file
+    private int pos, limit;           // Read position and end of the data in buf
+    private int tokenStart, tokenEnd; // Bounds of the most recently read token
+    private int lineNumber;           // 1-based number of the current line
+    private List<String> problems;    // Problems found so far, in file order
+
+    // Results, valid after parse()
+    String utteranceID;
+    int startIdx, endIdx;
+    int numNodes, numEdges;           // As declared in the header
+    double[] nodeTimes;
+    int[] from, to, label, am, lm;    // Edges in file order, entries 0..edgeCount-1;
+    int edgeCount;                    //   label[] holds global Vocabulary ids
+
+    // Label intern table: open addressing over label ids, keyed by the
+    // label's bytes, which stay in buf at labelStart/labelLength
+    private int[] labelTable;
+    private int[] labelHash, labelStart, labelLength;
+    private int numLabels;
+
+    // LatticeParser
+    // Preconditions:
+    //     - latticeFilename is the path of the lattice file to parse
+    // Post-conditions
+    //     - The file has been read into memory, ready for parse()
+    // Notes:
+    //     - Throws java.nio.file.NoSuchFileException (an IOException) if the
+    //       file does not exist
+    LatticeParser(String latticeFilename) throws IOException {
+        this.filename = latticeFilename;
+        FileChannel channel = FileChannel.open(Paths.get(latticeFilename), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if( size > Integer.MAX_VALUE - 8 ) {
+                throw new IOException("Lattice file " + latticeFilename + " is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int)size);
+            while( buffer.hasRemaining() && channel.read(buffer) >= 0 ) {
+            }
+            this.buf = buffer.array();
+            this.limit = buffer.position();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // parse
+    // Preconditions:
+    //     - The file holds a lattice in the format written by Lattice.saveAsFile:
+    //       five "key value" header lines, numNodes "node" lines and then
+    //       one "edge" line per edge
+    // Post-conditions
+    //     - The result fields are populated
+    // Notes:
+    //     - Fields may be separated by any mix of spaces and tabs, and blank
+    //       lines are ignored
+    //     - Throws LatticeFormatException listing every problem found (up to
+    //       MAX_PROBLEMS): malformed or missing fields, node or edge indices
+    //       out of range, repeated or missing node lines, a header that
+    //       disagrees with the body, or declares more nodes than the file
+    //       could hold
+    void parse() throws LatticeFormatException {
+        this.problems = new ArrayList<String>();
+        this.numNodes = -1;
+        this.numEdges = -1;
+        this.startIdx = -1;
+        this.endIdx = -1;
+        parseHeader();
+        if( this.numNodes > (this.limit - this.pos) / MIN_NODE_LINE_BYTES ) {
+            addProblem(null, "the header declares numNodes " + this.numNodes + " but the "
+                       + (this.limit - this.pos) + " bytes after it cannot hold that many node lines");
+            this.numNodes = -1;
+        }
+        if( this.numNodes < 0 ) {
+            throw new LatticeFormatException(this.filename, this.problems);
+        }
+        parseNodes();
+        parseEdges();
+
+        if( this.startIdx >= this.numNodes ) {
+            addProblem(null, "start node " + this.startIdx + " is not one of the " + this.numNodes + " nodes");
+        }
+        if( this.endIdx >= this.numNodes ) {
+            addProblem(null, "end node " + this.endIdx + " is not one of the " + this.numNodes + " nodes");
+        }
+        if( !this.problems.isEmpty() ) {
+            throw new LatticeFormatException(this.filename, this.problems);
+        }
+
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        int[] wordIds = new int[this.numLabels];
+        for( int i=0; i<this.numLabels; i++ ) {
+            wordIds[i] = vocabulary.intern(new String(this.buf, this.labelStart[i], this.labelLength[i], StandardCharsets.UTF_8));
+        }
+        for( int e=0; e<this.edgeCount; e++ ) {
+            this.label[e] = wordIds[this.label[e]];
+        }
+        this.buf = null;
+    }
+
+    // parseHeader
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - The five header lines are read; unknown keys are skipped, and
+    //       missing, repeated or malformed keys are recorded as problems
+    private void parseHeader() {
+        boolean[] seen = new boolean[HEADER_KEYS.length];
+        for( int i=0; i<HEADER_KEYS.length; i++ ) {
+            if( !nextLine() ) {
+                addProblem(null, "the file ends after " + i + " of the 5 header lines");
+                break;
+            }
+            try {
+                nextToken("header key");
+                int key = 0;
+                while( key < HEADER_KEYS.length && !tokenIs(HEADER_KEYS[key]) ) {
+                    key++;
+                }
+                if( key < HEADER_KEYS.length && seen[key] ) {
+                    throw new LineError("repeated header key " + HEADER_KEYS[key]);
+                }
+                switch( key ) {
+                    case 0:
+                        nextToken("utterance ID");
+                        this.utteranceID = tokenString();
+                        break;
+                    case 1:
+                        this.startIdx = nextNodeIndex("start node", Integer.MAX_VALUE);
+                        break;
+                    case 2:
+                        this.endIdx = nextNodeIndex("end node", Integer.MAX_VALUE);
+                        break;
+                    case 3:
+                        this.numNodes = nextNodeIndex("numNodes", Integer.MAX_VALUE);
+                        break;
+                    case 4:
+                        this.numEdges = nextNodeIndex("numEdges", Integer.MAX_VALUE);
+                        break;
+                    default:
+                        nextToken("header value");
+                }
+                if( key < HEADER_KEYS.length ) {
+                    seen[key] = true;
+                }
+                endLine();
+            } catch( LineError e ) {
+                addProblem(e);
+            }
+        }
+        for( int key=0; key<HEADER_KEYS.length; key++ ) {
+            if( !seen[key] ) {
+                addProblem(null, "the header has no valid " + HEADER_KEYS[key] + " line");
+            }
+        }
+    }
+
+    // parseNodes
+    // Preconditions:
+    //     - this.numNodes is known
+    // Post-conditions
+    //     - this.nodeTimes is populated from the numNodes node lines
+    //     - If an edge line appears before all node lines have been read, the
+    //       shortfall is recorded and parsing moves on to the edges; otherwise
+    //       every node left without a valid line is recorded
+    private void parseNodes() {
+        this.nodeTimes = new double[this.numNodes];
+        boolean[] seen = new boolean[this.numNodes];
+        for( int n=0; n<this.numNodes && !tooManyProblems(); n++ ) {
+            if( !nextLine() ) {
+                addProblem(null, "the file ends after " + n + " of the " + this.numNodes + " node lines");
+                return;
+            }
+            int lineStart = this.pos;
+            try {
+                nextToken("node keyword");
+                if( tokenIs("edge") ) {
+                    this.pos = lineStart;
+                    addProblem(null, "the file has " + n + " node lines but the header declares numNodes " + this.numNodes);
+                    return;
+                }
+                if( !tokenIs("node") ) {
+                    throw new LineError("expected a node line but found \"" + tokenString() + "\"");
+                }
+                int node = nextNodeIndex("node index", this.numNodes);
+                double time = nextDouble("node time");
+                endLine();
+                if( seen[node] ) {
+                    throw new LineError("node " + node + " is listed more than once");
+                }
+                seen[node] = true;
+                this.nodeTimes[node] = time;
+            } catch( LineError e ) {
+                addProblem(e);
+            }
+        }
+        for( int node=0; node<this.numNodes && !tooManyProblems(); node++ ) {
+            if( !seen[node] ) {
+                addProblem(null, "there is no valid node line for node " + node);
+            }
+        }
+    }
+
+    // parseEdges
+    // Preconditions:
+    //     - this.numNodes is known
+    // Post-conditions
+    //     - The edge arrays hold every well-formed edge line, in file order
+    //     - A count that disagrees with the header's numEdges is recorded
+    // Notes:
+    //     - The arrays are presized from numEdges, but never beyond the
+    //       number of edge lines the rest of the file could hold
+    private void parseEdges() {
+        int capacity = Math.max(Math.min(this.numEdges, (this.limit - this.pos) / MIN_EDGE_LINE_BYTES), 16);
+        this.from = new int[capacity];
+        this.to = new int[capacity];
+        this.label = new int[capacity];
+        this.am = new int[capacity];
+        this.lm = new int[capacity];
+        this.labelTable = new int[64];
+        Arrays.fill(this.labelTable, -1);
+        this.labelHash = new int[16];
+        this.labelStart = new int[16];
+        this.labelLength = new int[16];
+
+        int edgeLines = 0;
+        while( !tooManyProblems() && nextLine() ) {
+            edgeLines++;
+            try {
+                nextToken("edge keyword");
+                if( !tokenIs("edge") ) {
+                    throw new LineError("expected an edge line but found \"" + tokenString() + "\"");
+                }
+                if( this.edgeCount == this.from.length ) {
+                    capacity = 2 * capacity;
+                    this.from = Arrays.copyOf(this.from, capacity);
+                    this.to = Arrays.copyOf(this.to, capacity);
+                    this.label = Arrays.copyOf(this.label, capacity);
+                    this.am = Arrays.copyOf(this.am, capacity);
+                    this.lm = Arrays.copyOf(this.lm, capacity);
+                }
+                this.from[this.edgeCount] = nextNodeIndex("edge start node", this.numNodes);
+                this.to[this.edgeCount] = nextNodeIndex("edge end node", this.numNodes);
+                nextToken("edge label");
+                this.label[this.edgeCount] = internToken();
+                this.am[this.edgeCount] = nextInt("amScore");
+                this.lm[this.edgeCount] = nextInt("lmScore");
+                endLine();
+                this.edgeCount++;
+            } catch( LineError e ) {
+                addProblem(e);
+            }
+        }
+        if( this.numEdges >= 0 && edgeLines != this.numEdges && !tooManyProblems() ) {
+            addProblem(null, "the file has " + edgeLines + " edge lines but the header declares numEdges " + this.numEdges);
+        }
+    }
+
+    // addProblem
+    // Preconditions:
+    //     - e is the error raised while reading the current line
+    // Post-conditions
+    //     - The error is recorded against the current line, and the rest of
+    //       the line is skipped
+    private void addProblem(LineError e) {
+        addProblem("line " + this.lineNumber, e.getMessage());
+        while( this.pos < this.limit && this.buf[this.pos] != '\n' ) {
+            this.pos++;
+        }
+    }
+
+    // addProblem
+    // Preconditions:
+    //     - where locates the problem (null if it concerns the whole file)
+    // Post-conditions
+    //     - The problem is recorded, unless MAX_PROBLEMS have been already
+    private void addProblem(String where, String problem) {
+        if( this.problems.size() < MAX_PROBLEMS ) {
+            this.problems.add(where == null ? problem : where + ": " + problem);
+        } else if( this.problems.size() == MAX_PROBLEMS ) {
+            this.problems.add("too many problems; stopped reading");
+        }
+    }
+
+    // tooManyProblems
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns true once MAX_PROBLEMS problems have been recorded
+    private boolean tooManyProblems() {
+        return this.problems.size() >= MAX_PROBLEMS;
+    }
+
+    // nextLine
+    // Preconditions:
+    //     - The previous line, if any, has been read up to its line break
+    // Post-conditions
+    //     - pos is moved to the first field of the next non-blank line and
+    //       lineNumber is updated
+    //     - Returns false if there are no more lines
+    private boolean nextLine() {
+        byte[] b = this.buf;
+        int i = this.pos;
+        int lines = 0;
+        while( i < this.limit && (b[i] & 0xff) <= ' ' ) {
+            if( b[i] == '\n' ) {
+                lines++;
+            }
+            i++;
+        }
+        this.pos = i;
+        this.lineNumber += (this.lineNumber == 0) ? lines + 1 : lines;
+        return i < this.limit;
+    }
+
+    // skipBlanks
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - pos is advanced past spaces, tabs and carriage returns, stopping
+    //       at a line break
+    //     - Returns true if another field follows on the current line
+    private boolean skipBlanks() {
+        byte[] b = this.buf;
+        int i = this.pos;
+        while( i < this.limit && (b[i] & 0xff) <= ' ' && b[i] != '\n' ) {
+            i++;
+        }
+        this.pos = i;
+        return i < this.limit && b[i] != '\n';
+    }
+
+    // endLine
+    // Preconditions:
+    //     - All fields of the current line have been read
+    // Post-conditions
+    //     - Throws LineError if anything else is left on the line
+    private void endLine() {
+        if( skipBlanks() ) {
+            int start = this.pos;
+            while( this.pos < this.limit && this.buf[this.pos] != '\n' ) {
+                this.pos++;
+            }
+            int end = this.pos;
+            while( end > start && (this.buf[end-1] & 0xff) <= ' ' ) {
+                end--;
+            }
+            throw new LineError("unexpected text \"" + new String(this.buf, start, end - start, StandardCharsets.UTF_8)
+                                + "\" at the end of the line");
+        }
+    }
+
+    // nextToken
+    // Preconditions:
+    //     - what names the field being read, for error messages
+    // Post-conditions
+    //     - tokenStart and tokenEnd delimit the next field on the current line
+    //     - Throws LineError if the line has no more fields
+    private void nextToken(String what) {
+        if( !skipBlanks() ) {
+            throw new LineError("missing " + what);
+        }
+        byte[] b = this.buf;
+        int i = this.pos;
+        this.tokenStart = i;
+        while( i < this.limit && (b[i] & 0xff) > ' ' ) {
+            i++;
+        }
+        this.pos = i;
+        this.tokenEnd = i;
+    }
+
+    // tokenIs
+    // Preconditions:
+    //     - keyword contains only ASCII characters
+    // Post-conditions
+    //     - Returns true if the current token is exactly keyword
+    private boolean tokenIs(String keyword) {
+        if( this.tokenEnd - this.tokenStart != keyword.length() ) {
+            return false;
+        }
+        for( int i=0; i<keyword.length(); i++ ) {
+            if( this.buf[this.tokenStart + i] != keyword.charAt(i) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // tokenString
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the current token decoded as a String
+    private String tokenString() {
+        return new String(this.buf, this.tokenStart, this.tokenEnd - this.tokenStart, StandardCharsets.UTF_8);
+    }
+
+    // nextNodeIndex
+    // Preconditions:
+    //     - what names the field being read, for error messages
+    // Post-conditions
+    //     - Reads the next field and returns it as an int in 0..bound-1
+    //     - Throws LineError if it is malformed or out of range
+    private int nextNodeIndex(String what, int bound) {
+        int value = nextInt(what);
+        if( value < 0 || value >= bound ) {
+            throw new LineError(what + " " + value + (bound == Integer.MAX_VALUE ? " is negative"
+                                : " is not one of the " + bound + " nodes"));
+        }
+        return value;
+    }
+
+    // nextInt
+    // Preconditions:
+    //     - what names the field being read, for error messages
+    // Post-conditions
+    //     - Reads the next field and returns it as an int
+    //     - Throws LineError if it is missing or not a decimal int
+    private int nextInt(String what) {
+        if( !skipBlanks() ) {
+            throw new LineError("missing " + what);
+        }
+        byte[] b = this.buf;
+        int i = this.pos;
+        this.tokenStart = i;
+        boolean negative = false;
+        if( b[i] == '-' || b[i] == '+' ) {
+            negative = b[i] == '-';
+            i++;
+        }
+        int digitsStart = i;
+        long value = 0;
+        while( i < this.limit && value <= Integer.MAX_VALUE + 1L ) {
+            int digit = b[i] - '0';
+            if( digit < 0 || digit > 9 ) {
+                break;
+            }
+            value = 10 * value + digit;
+            i++;
+        }
+        this.pos = i;
+        if( negative ) {
+            value = -value;
+        }
+        if( i == digitsStart || (i < this.limit && (b[i] & 0xff) > ' ')
+                || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ) {
+            while( this.pos < this.limit && (b[this.pos] & 0xff) > ' ' ) {
+                this.pos++;
+            }
+            this.tokenEnd = this.pos;
+            throw new LineError(what + " \"" + tokenString() + "\" is not an integer");
+        }
+        this.tokenEnd = i;
+        return (int)value;
+    }
+
+    // nextDouble
+    // Preconditions:
+    //     - what names the field being read, for error messages
+    // Post-conditions
+    //     - Reads the next field and returns it as a double, identical to
+    //       what Double.parseDouble would return
+    //     - Throws LineError if it is missing or not a number
+    // Notes:
+    //     - Plain fixed-point values such as "12.34" are converted without
+    //       creating a String; anything else (exponents, very long mantissas)
+    //       falls back to Double.parseDouble
+    private double nextDouble(String what) {
+        nextToken(what);
+        int i = this.tokenStart;
+        boolean negative = false;
+        if( this.buf[i] == '-' || this.buf[i] == '+' ) {
+            negative = this.buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, fractionDigits = 0;
+        boolean seenPoint = false, fast = true;
+        for( ; i<this.tokenEnd && fast; i++ ) {
+            byte b = this.buf[i];
+            if( b >= '0' && b <= '9' ) {
+                mantissa = 10 * mantissa + (b - '0');
+                digits++;
+                if( seenPoint ) {
+                    fractionDigits++;
+                }
+                fast = mantissa < MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length;
+            } else if( b == '.' && !seenPoint ) {
+                seenPoint = true;
+            } else {
+                fast = false;
+            }
+        }
+        if( !fast || digits == 0 ) {
+            try {
+                return Double.parseDouble(tokenString());
+            } catch( NumberFormatException e ) {
+                throw new LineError(what + " \"" + tokenString() + "\" is not a number");
+            }
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    // internToken
+    // Preconditions:
+    //     - The current token is an edge label
+    // Post-conditions
+    //     - Returns the label's index among the distinct labels of this file,
+    //       assigning the next index if this is the first time it has been seen
+    private int internToken() {
+        int length = this.tokenEnd - this.tokenStart;
+        int hash = 1;
+        for( int i=this.tokenStart; i<this.tokenEnd; i++ ) {
+            hash = 31 * hash + this.buf[i];
+        }
+        int mask = this.labelTable.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while( this.labelTable[slot] != -1 ) {
+            int id = this.labelTable[slot];
+            if( this.labelHash[id] == hash && this.labelLength[id] == length
+                    && Arrays.equals(this.buf, this.labelStart[id], this.labelStart[id] + length,
+                                     this.buf, this.tokenStart, this.tokenEnd) ) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = this.numLabels++;
+        if( id == this.labelHash.length ) {
+            this.labelHash = Arrays.copyOf(this.labelHash, 2 * id);
+            this.labelStart = Arrays.copyOf(this.labelStart, 2 * id);
+            this.labelLength = Arrays.copyOf(this.labelLength, 2 * id);
+        }
+        this.labelHash[id] = hash;
+        this.labelStart[id] = this.tokenStart;
+        this.labelLength[id] = length;
+        this.labelTable[slot] = id;
+        if( 2 * this.numLabels > this.labelTable.length ) {
+            rehash();
+        }
+        return id;
+    }
+
+    // rehash
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - The label table is doubled in size and every label reinserted
+    private void rehash() {
+        int[] table = new int[2 * this.labelTable.length];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for( int id=0; id<this.numLabels; id++ ) {
+            int hash = this.labelHash[id];
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while( table[slot] != -1 ) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+        this.labelTable = table;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * LatticePipeline.java
+ *
+ * Loads, decodes and writes a batch of lattices as a three-stage pipeline,
+ * for batches where reading the files (e.g. from network storage) costs as
+ * much as decoding them:
+ *
+ *   load    a fixed pool of maxInFlightReads platform threads, each
+ *           reading one file at a time, so a blocked read ties up only
+ *           its own thread while the others keep reading
+ *   decode  a fixed pool of decodeThreads platform threads, one per core
+ *           being used
+ *   write   the calling thread, which hands each result to an Output
+ *           (saveAsFile, writeAsDot, or collecting hypotheses)
+ *
+ * The stages are joined by bounded queues, and a read only gives up its
+ * slot once its lattice is in the decode queue, so at most
+ * maxInFlightReads + 2 * queueCapacity + decodeThreads lattices are in
+ * memory at any time, however long the batch is.
+ *
+ * Results reach the Output in completion order.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+public final class LatticePipeline {
+    // Output - the write stage; called from one thread only
+    public interface Output {
+        // accept - file was loaded as lattice and decoded to hypothesis
+        void accept(Path file, Lattice lattice, Hypothesis hypothesis) throws IOException;
+
+        // failed - file could not be loaded, or accept threw for it
+        void failed(Path file, IOException error);
+    }
+
+    // Item - one file on its way through the pipeline
+    private static final class Item {
+        final Path file;
+        Lattice lattice;
+        Hypothesis hypothesis;
+        Throwable error;
+
+        Item(Path file) {
+            this.file = file;
+        }
+    }
+
+    private final int maxInFlightReads;
+    private final int decodeThreads;
+    private final int queueCapacity;
+    private final double lmScale;
+
+    // Constructor
+
+    // LatticePipeline
+    // Preconditions:
+    //     - maxInFlightReads >= 1 is the number of platform threads loading,
+    //       and so bounds the files being read at once
+    //     - decodeThreads >= 1 is the number of platform threads decoding
+    //     - queueCapacity >= 1 bounds each queue between stages
+    //     - lmScale is passed to Lattice.decode
+    // Post-conditions
+    //     - A pipeline is created; nothing runs until run is called
+    // Notes:
+    //     - Throws IllegalArgumentException if a bound is less than 1
+    public LatticePipeline(int maxInFlightReads, int decodeThreads, int queueCapacity, double lmScale) {
+        if( maxInFlightReads < 1 || decodeThreads < 1 || queueCapacity < 1 ) {
+            throw new IllegalArgumentException("pipeline bounds must be at least 1");
+        }
+        this.maxInFlightReads = maxInFlightReads;
+        this.decodeThreads = decodeThreads;
+        this.queueCapacity = queueCapacity;
+        this.lmScale = lmScale;
+    }
+
+    // run
+    // Preconditions:
+    //     - files lists the lattice files to process
+    //     - output is the write stage
+    // Post-conditions
+    //     - Every file has been loaded and decoded and output has received
+    //       exactly one accept or failed call for it
+    //     - Returns when all files are done
+    // Notes:
+    //     - Files that cannot be read or parsed, and IOExceptions thrown by
+    //       output.accept, go to output.failed and do not stop the run; any
+    //       other exception stops every stage and is rethrown
+    //     - Throws InterruptedException if the calling thread is interrupted,
+    //       after stopping every stage
+    public void run(final List<Path> files, Output output) throws InterruptedException {
+        final BlockingQueue<Item> loaded = new ArrayBlockingQueue<Item>(this.queueCapacity);
+        final BlockingQueue<Item> decoded = new ArrayBlockingQueue<Item>(this.queueCapacity);
+        final Semaphore reads = new Semaphore(this.maxInFlightReads);
+        final ExecutorService loaders = Executors.newFixedThreadPool(this.maxInFlightReads);
+        final ExecutorService decoders = Executors.newFixedThreadPool(this.decodeThreads);
+
+        // Load stage: the feeder hands each file to the loaders as soon as a
+        // read slot is free, so their task queue never grows past the batch
+        // being read
+        Thread feeder = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for( final Path file : files ) {
+                        reads.acquire();
+                        loaders.execute(new Runnable() {
+                            public void run() {
+                                Item item = new Item(file);
+                                try {
+                                    item.lattice = new Lattice(file.toString());
+                                    loaded.put(item);
+                                } catch( InterruptedException e ) {
+                                    return;
+                                } catch( IOException | RuntimeException | Error e ) {
+                                    item.error = e;
+                                    putQuietly(decoded, item);
+                                } finally {
+                                    reads.release();
+                                }
+                            }
+                        });
+                    }
+                } catch( InterruptedException e ) {
+                    // Stopped by run
+                }
+            }
+        });
+        feeder.setDaemon(true);
+        feeder.start();
+
+        // Decode stage
+        for( int t=0; t<this.decodeThreads; t++ ) {
+            decoders.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while( true ) {
+                            Item item = loaded.take();
+                            try {
+                                item.hypothesis = item.lattice.decode(LatticePipeline.this.lmScale);
+                            } catch( RuntimeException | Error e ) {
+                                item.error = e;
+                            }
+                            decoded.put(item);
+                        }
+                    } catch( InterruptedException e ) {
+                        // Stopped by run
+                    }
+                }
+            });
+        }
+
+        // Write stage, on this thread
+        try {
+            for( int done=0; done<files.size(); done++ ) {
+                Item item = decoded.take();
+                if( item.error instanceof IOException ) {
+                    output.failed(item.file, (IOException)item.error);
+                } else if( item.error instanceof RuntimeException ) {
+                    throw (RuntimeException)item.error;
+                } else if( item.error != null ) {
+                    throw (Error)item.error;
+                } else {
+                    try {
+                        output.accept(item.file, item.lattice, item.hypothesis);
+                    } catch( IOException e ) {
+                        output.failed(item.file, e);
+                    }
+                }
+            }
+        } finally {
+            feeder.interrupt();
+            loaders.shutdownNow();
+            decoders.shutdownNow();
+        }
+    }
+
+    // putQuietly
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - item is added to queue, or dropped if the thread is interrupted
+    //       (which only happens when run is stopping the pipeline)
+    private static void putQuietly(BlockingQueue<Item> queue, Item item) {
+        try {
+            queue.put(item);
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
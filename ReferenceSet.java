@@ -0,0 +1,394 @@
+/*
+ * ReferenceSet.java
+ *
+ * Defines a new "ReferenceSet" type: the reference transcripts of a whole
+ * corpus, loaded once and kept as arrays of Vocabulary ids keyed by
+ * utterance ID, for scoring hypotheses again and again (e.g. while
+ * sweeping lmScale) without touching the files.
+ *
+ * References are read either from a directory holding one transcript file
+ * per utterance (the format Hypothesis.computeWER reads) or from a single
+ * file with one "utteranceID word word ..." line per utterance (the Kaldi
+ * "text" format).  Words are separated by any whitespace.
+ *
+ * A batch of hypotheses is scored in parallel on a ForkJoinPool, giving
+ * each utterance's edit distance and WER and the corpus WER: total edits
+ * divided by total reference words.
+ *
+ * The set is immutable once loaded and may be used from many threads.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public final class ReferenceSet {
+    // Scores - the result of scoring a batch of hypotheses
+    public static final class Scores {
+        private final String[] utteranceIDs;
+        private final int[] edits;              // Edit distance of each utterance
+        private final int[] referenceLengths;   // Number of reference words of each
+        private long totalEdits, totalReferenceWords;
+
+        Scores(String[] utteranceIDs) {
+            this.utteranceIDs = utteranceIDs;
+            this.edits = new int[utteranceIDs.length];
+            this.referenceLengths = new int[utteranceIDs.length];
+        }
+
+        // getNumUtterances - the number of hypotheses scored
+        public int getNumUtterances() {
+            return this.utteranceIDs.length;
+        }
+
+        // getUtteranceID - the ID of the i'th utterance, in the batch's order
+        public String getUtteranceID(int i) {
+            return this.utteranceIDs[i];
+        }
+
+        // getEdits - the edit distance between the i'th hypothesis and its reference
+        public int getEdits(int i) {
+            return this.edits[i];
+        }
+
+        // getReferenceLength - the number of words in the i'th reference
+        public int getReferenceLength(int i) {
+            return this.referenceLengths[i];
+        }
+
+        // getWER - the i'th utterance's WER, as Hypothesis.computeWER gives it
+        public double getWER(int i) {
+            return (double)this.edits[i] / this.referenceLengths[i];
+        }
+
+        // getTotalEdits - the edit distances of all the utterances, summed
+        public long getTotalEdits() {
+            return this.totalEdits;
+        }
+
+        // getTotalReferenceWords - the reference lengths of all the utterances, summed
+        public long getTotalReferenceWords() {
+            return this.totalReferenceWords;
+        }
+
+        // getCorpusWER - total edits divided by total reference words
+        public double getCorpusWER() {
+            return (double)this.totalEdits / this.totalReferenceWords;
+        }
+
+        // toString - one "utteranceID edits referenceLength WER" line per
+        //   utterance, then a "corpus totalEdits totalReferenceWords WER" line
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            for( int i=0; i<this.utteranceIDs.length; i++ ) {
+                result.append(this.utteranceIDs[i]).append(' ').append(this.edits[i]).append(' ')
+                      .append(this.referenceLengths[i]).append(' ').append(getWER(i)).append('\n');
+            }
+            result.append("corpus ").append(this.totalEdits).append(' ').append(this.totalReferenceWords)
+                  .append(' ').append(getCorpusWER()).append('\n');
+            return result.toString();
+        }
+    }
+
+    private final HashMap<String, int[]> references;   // utterance ID -> word ids
+
+    // Constructor
+
+    // ReferenceSet
+    // Preconditions:
+    //     - references maps utterance IDs to reference word ids
+    // Post-conditions
+    //     - A set holding exactly those references is created
+    private ReferenceSet(HashMap<String, int[]> references) {
+        this.references = references;
+    }
+
+    // loadDirectory
+    // Preconditions:
+    //     - directory holds one reference transcript per utterance, each in
+    //       a file named utteranceID + extension (e.g. ".ref")
+    // Post-conditions
+    //     - Returns the set of every such file's transcript, keyed by the
+    //       file name without the extension
+    // Notes:
+    //     - Files are read as UTF-8
+    //     - Throws IOException if the directory or a file cannot be read
+    public static ReferenceSet loadDirectory(Path directory, String extension) throws IOException {
+        HashMap<String, int[]> references = new HashMap<String, int[]>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + extension);
+        try {
+            for( Path file : stream ) {
+                String name = file.getFileName().toString();
+                String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                references.put(name.substring(0, name.length() - extension.length()), toWordIds(text, 0));
+            }
+        } finally {
+            stream.close();
+        }
+        return new ReferenceSet(references);
+    }
+
+    // loadText
+    // Preconditions:
+    //     - file holds one line per utterance: the utterance ID followed by
+    //       the words of its reference transcript
+    // Post-conditions
+    //     - Returns the set of every line's transcript, keyed by its
+    //       utterance ID; blank lines are skipped
+    // Notes:
+    //     - The file is read as UTF-8
+    //     - Throws IOException if the file cannot be read, or if an
+    //       utterance ID appears on more than one line
+    public static ReferenceSet loadText(Path file) throws IOException {
+        HashMap<String, int[]> references = new HashMap<String, int[]>();
+        try( BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+            String line;
+            for( int lineNumber=1; (line = reader.readLine()) != null; lineNumber++ ) {
+                int start = skipWhitespace(line, 0);
+                if( start == line.length() ) {
+                    continue;
+                }
+                int end = start;
+                while( end < line.length() && !Character.isWhitespace(line.charAt(end)) ) {
+                    end++;
+                }
+                String utteranceID = line.substring(start, end);
+                if( references.put(utteranceID, toWordIds(line, end)) != null ) {
+                    throw new IOException(file + ": line " + lineNumber + ": utterance " + utteranceID
+                                          + " appears more than once");
+                }
+            }
+        }
+        return new ReferenceSet(references);
+    }
+
+    // toWordIds
+    // Preconditions:
+    //     - text holds words separated by whitespace, from position start on
+    // Post-conditions
+    //     - Returns the global Vocabulary id of each word, in order
+    // Notes:
+    //     - Words are interned, so a word first seen in a lattice loaded
+    //       later still gets the same id.  Tokens are taken literally, as
+    //       computeWER does: a reference "going_to" is one word and does not
+    //       match the hypothesis words "going to"
+    private static int[] toWordIds(String text, int start) {
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        int[] ids = new int[16];
+        int count = 0;
+        for( int i=skipWhitespace(text, start); i<text.length(); i=skipWhitespace(text, i) ) {
+            int end = i;
+            while( end < text.length() && !Character.isWhitespace(text.charAt(end)) ) {
+                end++;
+            }
+            if( count == ids.length ) {
+                ids = Arrays.copyOf(ids, 2 * count);
+            }
+            ids[count++] = vocabulary.intern(text.substring(i, end));
+            i = end;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    // skipWhitespace - the position of the first non-whitespace character
+    //   of text at or after i, or text.length() if there is none
+    private static int skipWhitespace(String text, int i) {
+        while( i < text.length() && Character.isWhitespace(text.charAt(i)) ) {
+            i++;
+        }
+        return i;
+    }
+
+    // Accessors
+
+    // size
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of utterances with a reference
+    public int size() {
+        return this.references.size();
+    }
+
+    // contains
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns true if there is a reference for utteranceID
+    public boolean contains(String utteranceID) {
+        return this.references.containsKey(utteranceID);
+    }
+
+    // getReferenceString
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the reference words for utteranceID, each followed by a
+    //       space (as Hypothesis.getHypothesisString), or null if there is
+    //       no reference for it
+    public String getReferenceString(String utteranceID) {
+        int[] reference = this.references.get(utteranceID);
+        if( reference == null ) {
+            return null;
+        }
+        Vocabulary vocabulary = Vocabulary.getGlobal();
+        StringBuilder result = new StringBuilder(8 * reference.length);
+        for( int i=0; i<reference.length; i++ ) {
+            result.append(vocabulary.getWord(reference[i])).append(' ');
+        }
+        return result.toString();
+    }
+
+    // getReference
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the Vocabulary ids of the reference words for
+    //       utteranceID, or null if there is no reference for it
+    // Notes:
+    //     - The returned array is shared and must not be modified
+    int[] getReference(String utteranceID) {
+        return this.references.get(utteranceID);
+    }
+
+    // computeWER
+    // Preconditions:
+    //     - hypothesis is a hypothesis for utteranceID
+    // Post-conditions
+    //     - Returns the WER of hypothesis against the reference for
+    //       utteranceID, as Hypothesis.computeWER would for its file
+    // Notes:
+    //     - Throws IllegalArgumentException if there is no reference for
+    //       utteranceID
+    public double computeWER(String utteranceID, Hypothesis hypothesis) {
+        int[] reference = referenceFor(utteranceID);
+        return (double)hypothesis.editDistance(reference, reference.length, Integer.MAX_VALUE) / reference.length;
+    }
+
+    // align
+    // Preconditions:
+    //     - hypothesis is a hypothesis for utteranceID
+    // Post-conditions
+    //     - Returns a minimum edit distance alignment of hypothesis against
+    //       the reference for utteranceID, as Hypothesis.align would for its
+    //       file
+    // Notes:
+    //     - Throws IllegalArgumentException if there is no reference for
+    //       utteranceID
+    public Alignment align(String utteranceID, Hypothesis hypothesis) {
+        int[] reference = referenceFor(utteranceID);
+        return hypothesis.align(reference, reference.length);
+    }
+
+    // oracleHypothesis
+    // Preconditions:
+    //     - lmScale specifies how much lmScore should be weighted, as in
+    //       Lattice.decode
+    // Post-conditions
+    //     - Returns the path through lattice closest to the reference for
+    //       its utterance ID, as Lattice.oracleHypothesis would for that
+    //       reference's file
+    // Notes:
+    //     - Throws IllegalArgumentException if there is no reference for
+    //       the lattice's utterance ID
+    public Hypothesis oracleHypothesis(Lattice lattice, double lmScale) {
+        return lattice.oracleHypothesis(referenceFor(lattice.getUtteranceID()), lmScale);
+    }
+
+    // score
+    // Preconditions:
+    //     - hypotheses maps utterance IDs to their hypotheses
+    // Post-conditions
+    //     - Same as score(hypotheses, ForkJoinPool.commonPool())
+    public Scores score(Map<String, Hypothesis> hypotheses) {
+        return score(hypotheses, ForkJoinPool.commonPool());
+    }
+
+    // score
+    // Preconditions:
+    //     - hypotheses maps utterance IDs to their hypotheses
+    //     - pool is the pool to score on
+    // Post-conditions
+    //     - Returns the scores of every hypothesis against its reference,
+    //       in the map's iteration order, and their corpus totals
+    // Notes:
+    //     - Only the utterances in hypotheses are scored: references with
+    //       no hypothesis do not count towards the corpus WER
+    //     - Throws IllegalArgumentException, before any scoring, if a
+    //       hypothesis has no reference
+    public Scores score(Map<String, Hypothesis> hypotheses, ForkJoinPool pool) {
+        String[] utteranceIDs = new String[hypotheses.size()];
+        Hypothesis[] batch = new Hypothesis[hypotheses.size()];
+        int[][] batchReferences = new int[hypotheses.size()][];
+        Iterator<Map.Entry<String, Hypothesis>> entries = hypotheses.entrySet().iterator();
+        for( int i=0; i<batch.length; i++ ) {
+            Map.Entry<String, Hypothesis> entry = entries.next();
+            utteranceIDs[i] = entry.getKey();
+            batch[i] = entry.getValue();
+            batchReferences[i] = referenceFor(entry.getKey());
+        }
+
+        Scores scores = new Scores(utteranceIDs);
+        pool.invoke(new ScoreTask(batch, batchReferences, scores, 0, batch.length));
+        for( int i=0; i<batch.length; i++ ) {
+            scores.totalEdits += scores.edits[i];
+            scores.totalReferenceWords += scores.referenceLengths[i];
+        }
+        return scores;
+    }
+
+    // referenceFor - the reference for utteranceID, which must exist
+    private int[] referenceFor(String utteranceID) {
+        int[] reference = this.references.get(utteranceID);
+        if( reference == null ) {
+            throw new IllegalArgumentException("no reference for utterance " + utteranceID);
+        }
+        return reference;
+    }
+
+    // ScoreTask - scores utterances from..to-1 of a batch, splitting the
+    //   range in half until each task has a few utterances left
+    private static final class ScoreTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int LEAF_SIZE = 4;
+
+        private final transient Hypothesis[] hypotheses;
+        private final transient int[][] references;
+        private final transient Scores scores;
+        private final int from, to;
+
+        ScoreTask(Hypothesis[] hypotheses, int[][] references, Scores scores, int from, int to) {
+            this.hypotheses = hypotheses;
+            this.references = references;
+            this.scores = scores;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if( this.to - this.from > LEAF_SIZE ) {
+                int middle = (this.from + this.to) >>> 1;
+                invokeAll(new ScoreTask(this.hypotheses, this.references, this.scores, this.from, middle),
+                          new ScoreTask(this.hypotheses, this.references, this.scores, middle, this.to));
+                return;
+            }
+            for( int i=this.from; i<this.to; i++ ) {
+                int[] reference = this.references[i];
+                this.scores.edits[i] = this.hypotheses[i].editDistance(reference, reference.length, Integer.MAX_VALUE);
+                this.scores.referenceLengths[i] = reference.length;
+            }
+        }
+    }
+}
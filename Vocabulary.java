@@ -0,0 +1,175 @@
+/*
+ * Vocabulary.java
+ *
+ * Defines a new "Vocabulary" type, which maps every distinct word (edge
+ * label) to a small, dense integer id.  A single global vocabulary is shared
+ * by all lattices, so a word that occurs in thousands of lattices is stored
+ * once, and comparing two labels is an int comparison.
+ *
+ * For each id the vocabulary also records, once, whether the word is
+ * -silence-, whether it is a multiword (contains an underscore, e.g.
+ * going_to), and the ids of the individual words it splits into.
+ *
+ * The vocabulary only grows: once assigned, an id never changes.  It is
+ * safe to use from many threads at once.
+ *
+ *
+ * I.C. & I.M
+ *
+ */
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class Vocabulary {
+    public static final String SILENCE = "-silence-";  // The silence token
+    private static final int[] NO_PARTS = new int[0];
+    private static final Vocabulary GLOBAL = new Vocabulary();
+
+    // Entry - everything known about one word, fixed when it is interned
+    private static final class Entry {
+        final String word;
+        final boolean silence, multiword;
+        final int[] parts;           // Ids of the words in the split form
+
+        Entry(String word, boolean silence, boolean multiword, int[] parts) {
+            this.word = word;
+            this.silence = silence;
+            this.multiword = multiword;
+            this.parts = parts;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Integer> ids;  // word -> id
+    private volatile Entry[] entries;                      // id -> entry
+    private int size;                                      // Guarded by this
+
+    // Constructor
+
+    // Vocabulary
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - An empty vocabulary is created
+    private Vocabulary() {
+        this.ids = new ConcurrentHashMap<String, Integer>();
+        this.entries = new Entry[1024];
+    }
+
+    // getGlobal
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the vocabulary shared by all lattices
+    public static Vocabulary getGlobal() {
+        return GLOBAL;
+    }
+
+    // Mutator/Modifier
+
+    // intern
+    // Preconditions:
+    //     - word is a non-null word
+    // Post-conditions
+    //     - Returns the id of word, assigning the next free id if the word
+    //       has not been seen before
+    // Notes:
+    //     - Known words are looked up without locking
+    public int intern(String word) {
+        Integer id = this.ids.get(word);
+        if( id != null ) {
+            return id;
+        }
+        synchronized( this ) {
+            id = this.ids.get(word);
+            if( id != null ) {
+                return id;
+            }
+            boolean silence = word.equals(SILENCE);
+            boolean multiword = word.indexOf('_') >= 0;
+            int[] parts = NO_PARTS;
+            if( multiword && !silence ) {
+                String[] split = word.split("_");
+                parts = new int[split.length];
+                for( int i=0; i<split.length; i++ ) {
+                    parts[i] = intern(split[i]);
+                }
+            }
+
+            int newId = this.size;
+            if( !multiword && !silence ) {
+                parts = new int[] { newId };
+            }
+            Entry[] table = this.entries;
+            if( newId == table.length ) {
+                table = java.util.Arrays.copyOf(table, 2 * table.length);
+            }
+            table[newId] = new Entry(word, silence, multiword, parts);
+            this.entries = table;
+            this.size = newId + 1;
+            // Publishing the id last means any thread that can see the id
+            // can also see its entry
+            this.ids.put(word, newId);
+            return newId;
+        }
+    }
+
+    // Accessors
+
+    // lookup
+    // Preconditions:
+    //     - word is a non-null word
+    // Post-conditions
+    //     - Returns the id of word, or -1 if the word has never been interned
+    public int lookup(String word) {
+        Integer id = this.ids.get(word);
+        return id == null ? -1 : id;
+    }
+
+    // getWord
+    // Preconditions:
+    //     - id was returned by intern or lookup
+    // Post-conditions
+    //     - Returns the word with the given id
+    public String getWord(int id) {
+        return this.entries[id].word;
+    }
+
+    // isSilence
+    // Preconditions:
+    //     - id was returned by intern or lookup
+    // Post-conditions
+    //     - Returns true if the word is -silence-
+    public boolean isSilence(int id) {
+        return this.entries[id].silence;
+    }
+
+    // isMultiword
+    // Preconditions:
+    //     - id was returned by intern or lookup
+    // Post-conditions
+    //     - Returns true if the word contains an underscore (e.g. going_to)
+    public boolean isMultiword(int id) {
+        return this.entries[id].multiword;
+    }
+
+    // size
+    // Preconditions:
+    //     - None
+    // Post-conditions
+    //     - Returns the number of distinct words interned so far
+    public synchronized int size() {
+        return this.size;
+    }
+
+    // wordParts
+    // Preconditions:
+    //     - id was returned by intern or lookup
+    // Post-conditions
+    //     - Returns the ids of the words that id contributes to a hypothesis:
+    //       none for -silence-, the split words for a multiword, and id
+    //       itself otherwise
+    // Notes:
+    //     - The returned array is shared and must not be modified
+    int[] wordParts(int id) {
+        return this.entries[id].parts;
+    }
+}